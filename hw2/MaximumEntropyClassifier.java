@@ -1,9 +1,28 @@
 package nlp.assignments;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import nlp.classify.*;
 import nlp.math.DifferentiableFunction;
@@ -26,6 +45,61 @@ import nlp.util.Pair;
 public class MaximumEntropyClassifier<I, F, L> implements
 		ProbabilisticClassifier<I, L> {
 
+	/**
+	 * A feature extractor for hashed encodings. Instead of building feature
+	 * objects it adds to the buffer, for every feature, the hashCode() that
+	 * the feature object would have had, so it can be computed straight from
+	 * the input without allocating. When an encoding is hashed and its feature
+	 * extractor also implements this interface, this method is used instead of
+	 * extractFeatures(); both must describe the same features. An indexed
+	 * encoding needs the feature objects themselves, so it always calls
+	 * extractFeatures().
+	 */
+	public static interface HashedFeatureExtractor<I> {
+		void extractFeatureHashCodes(I input, FeatureBuffer buffer);
+	}
+
+	/**
+	 * A reusable list of (feature hash code, count) pairs. The same hash code
+	 * may be added more than once; the counts are then summed.
+	 */
+	public static class FeatureBuffer {
+		int size;
+		int[] hashCodes = new int[64];
+		double[] counts = new double[64];
+
+		public void clear() {
+			size = 0;
+		}
+
+		public void add(int hashCode, double count) {
+			if (size == hashCodes.length) {
+				hashCodes = Arrays.copyOf(hashCodes, 2 * size);
+				counts = Arrays.copyOf(counts, 2 * size);
+			}
+			hashCodes[size] = hashCode;
+			counts[size] = count;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * A feature extractor that also knows which labels an input can possibly
+	 * have. If the extractor of a classifier implements this interface, only
+	 * the returned labels are scored and all others get probability zero. A
+	 * null result means no restriction. Otherwise labels the classifier does
+	 * not know are ignored and repeated labels count once, and at least one
+	 * known label must remain or classification throws an
+	 * IllegalArgumentException.
+	 */
+	public static interface LabelCandidateExtractor<I, L> {
+		Collection<L> getCandidateLabels(I input);
+	}
+
 	/**
 	 * Factory for training MaximumEntropyClassifiers.
 	 */
@@ -34,125 +108,139 @@ public class MaximumEntropyClassifier<I, F, L> implements
 
 		double sigma;
 		int iterations;
+		int numThreads;
+		int hashBits;
 		FeatureExtractor<I, F> featureExtractor;
 
 		public ProbabilisticClassifier<I, L> trainClassifier(
 				List<LabeledInstance<I, L>> trainingData) {
+			return trainClassifier(trainingData.iterator());
+		}
+
+		/**
+		 * Trains on instances that are read exactly once: the features of each
+		 * instance are extracted a single time, indexed (or hashed, see
+		 * setHashBits()) and appended to a compact EncodedDataset, so the
+		 * instances themselves never need to be in memory all at once.
+		 */
+		public ProbabilisticClassifier<I, L> trainClassifier(
+				Iterator<LabeledInstance<I, L>> trainingData) {
 			// build data encodings so the inner loops can be efficient
-			Encoding<F, L> encoding = buildEncoding(trainingData);
+			Encoding<F, L> encoding = buildEmptyEncoding(hashBits);
+			EncodedDataset data = encodeData(trainingData, encoding,
+					featureExtractor);
+			return trainClassifier(encoding, data.getData());
+		}
+
+		private ProbabilisticClassifier<I, L> trainClassifier(
+				Encoding<F, L> encoding, EncodedDatum[] data) {
 			IndexLinearizer indexLinearizer = buildIndexLinearizer(encoding);
 			double[] initialWeights = buildInitialWeights(indexLinearizer);
-			EncodedDatum[] data = encodeData(trainingData, encoding);
 			// build a minimizer object
 			GradientMinimizer minimizer = new LBFGSMinimizer(iterations);
-			// build the objective function for this data
-			DifferentiableFunction objective = new ObjectiveFunction<F, L>(
-					encoding, data, indexLinearizer, sigma);
-			// learn our voting weights
-//			double[] weights = minimizer.minimize(objective, initialWeights,
-//					1e-4);
-            
-            //Part 2: Perceptron
-
-            int numLabels = encoding.getNumLabels();
-            double[] weights = DoubleArrays.constantArray(0.0, indexLinearizer.getNumLinearIndexes());
-            double[] AvgWeights = DoubleArrays.constantArray(0.0, indexLinearizer.getNumLinearIndexes());
-            int num = 0;
-
-            while (iterations != 0){
-                
-                for (EncodedDatum datum : data){
-                    int numDatumFeatures = datum.getNumActiveFeatures();
-                    int LabelIndex = datum.getLabelIndex();
-                    int Prediction = 0;
-                    double MaxProbabilities = Double.NEGATIVE_INFINITY; 
-                    
-                    num++;
-                    for (int i = 0; i < indexLinearizer.getNumLinearIndexes(); i++){
-                        AvgWeights[i] = (AvgWeights[i]*(num-1) + weights[i])/num;
-                        weights[i] = AvgWeights[i];
-                    }
-
-                    for (int i = 0; i< numLabels; i++){
-                        double Probabilities = 0.0;
-                        for (int j = 0; j < numDatumFeatures; j++){
-                            int FeatureIndex = datum.getFeatureIndex(j);
-                            Probabilities = weights[indexLinearizer.getLinearIndex(FeatureIndex,i)]*datum.getFeatureCount(j) + Probabilities;
-                        }
-                        
-                        if (Probabilities > MaxProbabilities){
-                            MaxProbabilities = Probabilities; 
-                            Prediction = i;
-                        }
-                    }
-                    
-                
-                    if (LabelIndex != Prediction){
-                        
-                        for (int j = 0; j < numDatumFeatures; j++){
-                            int FeatureIndex = datum.getFeatureIndex(j);
-                            weights[indexLinearizer.getLinearIndex(FeatureIndex,LabelIndex)] = 
-                                weights[indexLinearizer.getLinearIndex(FeatureIndex, LabelIndex)] 
-                                + datum.getFeatureCount(j);
-                            weights[indexLinearizer.getLinearIndex(FeatureIndex,Prediction)] = 
-                                weights[indexLinearizer.getLinearIndex(FeatureIndex, Prediction)] 
-                                - datum.getFeatureCount(j);
-                        }
-                    }    
-                }
-                
-                iterations = iterations - 1;
-                System.out.println("******************************************Iterations: "+iterations+" **************************************");
-
-            }
-
-
+			// the pool lives only as long as this training run
+			ForkJoinPool pool = (numThreads > 1 ? new ForkJoinPool(numThreads)
+					: null);
+			double[] weights;
+			try {
+				// build the objective function for this data
+				DifferentiableFunction objective = new ObjectiveFunction<F, L>(
+						encoding, data, indexLinearizer, sigma, numThreads, pool);
+				// learn our voting weights
+				weights = minimizer.minimize(objective, initialWeights, 1e-4);
+			} finally {
+				if (pool != null)
+					pool.shutdown();
+			}
 			// build a classifier using these weights (and the data encodings)
 			return new MaximumEntropyClassifier<I, F, L>(weights, encoding,
 					indexLinearizer, featureExtractor);
 		}
 
-		private double[] buildInitialWeights(IndexLinearizer indexLinearizer) {
+		static double[] buildInitialWeights(IndexLinearizer indexLinearizer) {
 			return DoubleArrays.constantArray(0.0,
 					indexLinearizer.getNumLinearIndexes());
 		}
 
-		private IndexLinearizer buildIndexLinearizer(Encoding<F, L> encoding) {
+		static IndexLinearizer buildIndexLinearizer(Encoding<?, ?> encoding) {
 			return new IndexLinearizer(encoding.getNumFeatures(),
 					encoding.getNumLabels());
 		}
 
-		private Encoding<F, L> buildEncoding(List<LabeledInstance<I, L>> data) {
-			Indexer<F> featureIndexer = new Indexer<F>();
-			Indexer<L> labelIndexer = new Indexer<L>();
-			for (LabeledInstance<I, L> labeledInstance : data) {
-				L label = labeledInstance.getLabel();
-				Counter<F> features = featureExtractor
-						.extractFeatures(labeledInstance.getInput());
-				LabeledFeatureVector<F, L> labeledDatum = new BasicLabeledFeatureVector<F, L>(
-						label, features);
-				labelIndexer.add(labeledDatum.getLabel());
-				for (F feature : labeledDatum.getFeatures().keySet()) {
-					featureIndexer.add(feature);
-				}
+		static <F, L> Encoding<F, L> buildEmptyEncoding(int hashBits) {
+			if (hashBits > 0)
+				return new Encoding<F, L>(hashBits, new Indexer<L>());
+			return new Encoding<F, L>(new Indexer<F>(), new Indexer<L>());
+		}
+
+		/**
+		 * Extracts the features of every instance once, growing the (empty or
+		 * partly filled) encoding's indexers as new labels and features
+		 * appear, and appends the encoded instance to the returned dataset.
+		 */
+		static <I, F, L> EncodedDataset encodeData(
+				Iterator<LabeledInstance<I, L>> data, Encoding<F, L> encoding,
+				FeatureExtractor<I, F> featureExtractor) {
+			EncodedDataset dataset = new EncodedDataset();
+			FeatureBuffer buffer = new FeatureBuffer();
+			while (data.hasNext()) {
+				addDatum(data.next(), encoding, featureExtractor, buffer,
+						dataset);
 			}
-			return new Encoding<F, L>(featureIndexer, labelIndexer);
+			return dataset;
 		}
 
-		private EncodedDatum[] encodeData(List<LabeledInstance<I, L>> data,
-				Encoding<F, L> encoding) {
-			EncodedDatum[] encodedData = new EncodedDatum[data.size()];
-			for (int i = 0; i < data.size(); i++) {
-				LabeledInstance<I, L> labeledInstance = data.get(i);
-				L label = labeledInstance.getLabel();
-				Counter<F> features = featureExtractor
-						.extractFeatures(labeledInstance.getInput());
-				LabeledFeatureVector<F, L> labeledFeatureVector = new BasicLabeledFeatureVector<F, L>(
-						label, features);
-				encodedData[i] = EncodedDatum.encodeLabeledDatum(
-						labeledFeatureVector, encoding);
+		/**
+		 * Encodes one instance and appends it to the dataset, adding its label
+		 * and features to the encoding's indexers if they are new. The buffer
+		 * is scratch space for hashed feature extraction.
+		 */
+		static <I, F, L> void addDatum(LabeledInstance<I, L> labeledInstance,
+				Encoding<F, L> encoding, FeatureExtractor<I, F> featureExtractor,
+				FeatureBuffer buffer, EncodedDataset dataset) {
+			L label = labeledInstance.getLabel();
+			encoding.labelIndexer.add(label);
+			dataset.startDatum(encoding.getLabelIndex(label));
+			HashedFeatureExtractor<I> hashedFeatureExtractor = getHashedFeatureExtractor(
+					encoding, featureExtractor);
+			if (hashedFeatureExtractor != null) {
+				buffer.clear();
+				hashedFeatureExtractor.extractFeatureHashCodes(
+						labeledInstance.getInput(), buffer);
+				for (int j = 0; j < buffer.size(); j++) {
+					int hashCode = buffer.hashCodes[j];
+					dataset.addFeature(encoding.getHashedFeatureIndex(hashCode),
+							encoding.getHashedFeatureSign(hashCode)
+									* buffer.counts[j]);
+				}
+				dataset.finishDatum(true);
+				return;
+			}
+			Counter<F> features = featureExtractor
+					.extractFeatures(labeledInstance.getInput());
+			for (F feature : features.keySet()) {
+				if (!encoding.isHashed())
+					encoding.featureIndexer.add(feature);
+				dataset.addFeature(encoding.getFeatureIndex(feature),
+						encoding.getFeatureSign(feature)
+								* features.getCount(feature));
 			}
-			return encodedData;
+			dataset.finishDatum(encoding.isHashed());
+		}
+
+		/**
+		 * The extractor as a HashedFeatureExtractor, if the encoding is hashed
+		 * and the extractor supports it; otherwise null.
+		 */
+		static <I> HashedFeatureExtractor<I> getHashedFeatureExtractor(
+				Encoding<?, ?> encoding, FeatureExtractor<I, ?> featureExtractor) {
+			if (!encoding.isHashed()
+					|| !(featureExtractor instanceof HashedFeatureExtractor))
+				return null;
+			// the extractor's input type is I, so its hash codes are for I too
+			@SuppressWarnings("unchecked")
+			HashedFeatureExtractor<I> hashedFeatureExtractor = (HashedFeatureExtractor<I>) featureExtractor;
+			return hashedFeatureExtractor;
 		}
 
 		/**
@@ -166,9 +254,389 @@ public class MaximumEntropyClassifier<I, F, L> implements
 		 */
 		public Factory(double sigma, int iterations,
 				FeatureExtractor<I, F> featureExtractor) {
+			this(sigma, iterations, featureExtractor, 1);
+		}
+
+		/**
+		 * As above, but the objective function is evaluated on numThreads
+		 * threads. One thread means the plain sequential evaluation. Each
+		 * thread accumulates its derivatives in its own buffer, so training
+		 * holds numThreads extra weight-sized arrays of doubles.
+		 */
+		public Factory(double sigma, int iterations,
+				FeatureExtractor<I, F> featureExtractor, int numThreads) {
 			this.sigma = sigma;
 			this.iterations = iterations;
 			this.featureExtractor = featureExtractor;
+			this.numThreads = numThreads;
+		}
+
+		/**
+		 * A positive hashBits switches to feature hashing: features are
+		 * mapped into 2^hashBits slots by their hash code, with a hash-chosen
+		 * sign, instead of being stored in an Indexer. Zero (the default)
+		 * keeps the exact feature index.
+		 */
+		public void setHashBits(int hashBits) {
+			if (hashBits < 0 || hashBits > Encoding.MAX_HASH_BITS)
+				throw new IllegalArgumentException("hashBits must be in [0, "
+						+ Encoding.MAX_HASH_BITS + "]: " + hashBits);
+			this.hashBits = hashBits;
+		}
+	}
+
+	/**
+	 * Factory for training averaged perceptrons. The result is an ordinary
+	 * MaximumEntropyClassifier whose weights are the average of the perceptron
+	 * weights over every training example seen, so its probabilities are a
+	 * softmax of the averaged activations.
+	 * <p/>
+	 * Averaging is done lazily: each weight remembers the step at which it
+	 * last changed, and the value it held since then is folded into its running
+	 * total only when it changes again (or at the end of training). The work
+	 * per example is therefore proportional to its active features times the
+	 * number of labels, not to the size of the weight vector.
+	 */
+	public static class PerceptronFactory<I, F, L> implements
+			ProbabilisticClassifierFactory<I, L> {
+
+		int iterations;
+		FeatureExtractor<I, F> featureExtractor;
+
+		public ProbabilisticClassifier<I, L> trainClassifier(
+				List<LabeledInstance<I, L>> trainingData) {
+			Encoding<F, L> encoding = Factory.buildEmptyEncoding(0);
+			EncodedDatum[] data = Factory.encodeData(trainingData.iterator(),
+					encoding, featureExtractor).getData();
+			IndexLinearizer indexLinearizer = Factory
+					.buildIndexLinearizer(encoding);
+			int numLabels = encoding.getNumLabels();
+			int dimension = indexLinearizer.getNumLinearIndexes();
+
+			double[] weights = new double[dimension];
+			double[] weightTotals = new double[dimension];
+			int[] lastUpdates = new int[dimension];
+			double[] activations = new double[numLabels];
+			int step = 0;
+
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				int numMistakes = 0;
+				for (EncodedDatum datum : data) {
+					int numActiveFeatures = datum.getNumActiveFeatures();
+					computeActivations(datum, weights, indexLinearizer,
+							activations);
+					int guessedLabelIndex = 0;
+					for (int labelIndex = 1; labelIndex < numLabels; labelIndex++) {
+						if (activations[labelIndex] > activations[guessedLabelIndex])
+							guessedLabelIndex = labelIndex;
+					}
+
+					int goldLabelIndex = datum.getLabelIndex();
+					if (guessedLabelIndex != goldLabelIndex) {
+						numMistakes++;
+						for (int j = 0; j < numActiveFeatures; j++) {
+							int featureIndex = datum.getFeatureIndex(j);
+							double featureCount = datum.getFeatureCount(j);
+							update(weights, weightTotals, lastUpdates, step,
+									indexLinearizer.getLinearIndex(featureIndex,
+											goldLabelIndex), featureCount);
+							update(weights, weightTotals, lastUpdates, step,
+									indexLinearizer.getLinearIndex(featureIndex,
+											guessedLabelIndex), -featureCount);
+						}
+					}
+					step++;
+				}
+				System.out.println("Perceptron iteration " + (iteration + 1)
+						+ ": " + numMistakes + " mistakes");
+			}
+
+			// bring every total up to date and average
+			double[] averagedWeights = new double[dimension];
+			for (int i = 0; i < dimension; i++) {
+				weightTotals[i] += weights[i] * (step - lastUpdates[i]);
+				averagedWeights[i] = (step == 0 ? 0.0 : weightTotals[i] / step);
+			}
+			return new MaximumEntropyClassifier<I, F, L>(averagedWeights,
+					encoding, indexLinearizer, featureExtractor);
+		}
+
+		/**
+		 * Changes weights[index] by delta at the given step, first crediting
+		 * the total with the value the weight held since its last change.
+		 */
+		private static void update(double[] weights, double[] weightTotals,
+				int[] lastUpdates, int step, int index, double delta) {
+			weightTotals[index] += weights[index] * (step - lastUpdates[index]);
+			lastUpdates[index] = step;
+			weights[index] += delta;
+		}
+
+		/**
+		 * Iterations is the number of passes made over the training data.
+		 */
+		public PerceptronFactory(int iterations,
+				FeatureExtractor<I, F> featureExtractor) {
+			this.iterations = iterations;
+			this.featureExtractor = featureExtractor;
+		}
+	}
+
+	/**
+	 * Factory for training MaximumEntropyClassifiers online, with mini-batch
+	 * stochastic gradient descent and AdaGrad step sizes, on the same
+	 * regularized objective as Factory (scaled by the number of data).
+	 * <p/>
+	 * The training instances are streamed rather than held in memory: a
+	 * first pass only collects the labels (and, unless features are hashed,
+	 * the features) and counts the data, and each epoch then reads the
+	 * instances again, encoding them into a shuffle buffer of at most
+	 * shuffleBufferSize data. Whenever the buffer is full it is visited in a
+	 * random order, in batches of batchSize, and emptied. Apart from that
+	 * buffer, memory holds only the encoding, the weights and the AdaGrad
+	 * state. The price is that features are extracted again in every epoch.
+	 * <p/>
+	 * Only the weights of features active in a batch are updated. The penalty
+	 * on the other weights is applied lazily: each feature remembers the
+	 * batch at which it was last updated, and when it is touched again (or at
+	 * the end of training) its weights first receive the shrinkage of the
+	 * batches they missed, at their current AdaGrad rate. The penalty
+	 * gradients of skipped batches are not added to the AdaGrad accumulators,
+	 * which is the usual approximation.
+	 */
+	public static class AdaGradFactory<I, F, L> implements
+			ProbabilisticClassifierFactory<I, L> {
+
+		private static final double EPSILON = 1e-8;
+
+		double sigma;
+		int epochs;
+		int batchSize;
+		double learningRate;
+		int hashBits;
+		int shuffleBufferSize = 1 << 16;
+		FeatureExtractor<I, F> featureExtractor;
+		Random random = new Random(0);
+
+		public ProbabilisticClassifier<I, L> trainClassifier(
+				List<LabeledInstance<I, L>> trainingData) {
+			return trainClassifier((Iterable<LabeledInstance<I, L>>) trainingData);
+		}
+
+		/**
+		 * Trains on instances that are iterated over once to build the
+		 * encoding and once more per epoch.
+		 */
+		public ProbabilisticClassifier<I, L> trainClassifier(
+				Iterable<LabeledInstance<I, L>> trainingData) {
+			Encoding<F, L> encoding = Factory.buildEmptyEncoding(hashBits);
+			int numData = index(trainingData, encoding);
+			IndexLinearizer indexLinearizer = Factory
+					.buildIndexLinearizer(encoding);
+			double[] weights = train(trainingData, numData, encoding,
+					indexLinearizer);
+			return new MaximumEntropyClassifier<I, F, L>(weights, encoding,
+					indexLinearizer, featureExtractor);
+		}
+
+		/**
+		 * Adds every label, and every feature unless the encoding is hashed,
+		 * to the encoding; returns the number of instances.
+		 */
+		private int index(Iterable<LabeledInstance<I, L>> trainingData,
+				Encoding<F, L> encoding) {
+			int numData = 0;
+			for (LabeledInstance<I, L> labeledInstance : trainingData) {
+				encoding.labelIndexer.add(labeledInstance.getLabel());
+				if (!encoding.isHashed())
+					encoding.featureIndexer.addAll(featureExtractor
+							.extractFeatures(labeledInstance.getInput())
+							.keySet());
+				numData++;
+			}
+			return numData;
+		}
+
+		private double[] train(Iterable<LabeledInstance<I, L>> trainingData,
+				int numData, Encoding<F, L> encoding,
+				IndexLinearizer indexLinearizer) {
+			int numLabels = encoding.getNumLabels();
+			int numFeatures = encoding.getNumFeatures();
+			double[] weights = new double[indexLinearizer
+					.getNumLinearIndexes()];
+			double[] squaredGradientSums = new double[weights.length];
+			double[] gradients = new double[weights.length];
+			double[] activations = new double[numLabels];
+			int[] lastUpdates = new int[numFeatures];
+			int[] batchMarks = new int[numFeatures];
+			Arrays.fill(batchMarks, -1);
+			int[] touchedFeatures = new int[numFeatures];
+			// the gradient of the penalty |w|^2 / 2 sigma^2, scaled by 1 / N
+			// like the data term, applied with every batch
+			double penalty = (sigma == 0.0 || numData == 0 ? 0.0
+					: 1.0 / (sigma * sigma * numData));
+
+			EncodedDataset shuffleBuffer = new EncodedDataset();
+			FeatureBuffer featureBuffer = new FeatureBuffer();
+			int[] order = new int[Math.max(1,
+					Math.min(shuffleBufferSize, numData))];
+			int batch = 0;
+			for (int epoch = 0; epoch < epochs; epoch++) {
+				Iterator<LabeledInstance<I, L>> instances = trainingData
+						.iterator();
+				double logLoss = 0.0;
+				while (instances.hasNext()) {
+					shuffleBuffer.clear();
+					while (instances.hasNext()
+							&& shuffleBuffer.size() < order.length) {
+						Factory.addDatum(instances.next(), encoding,
+								featureExtractor, featureBuffer, shuffleBuffer);
+					}
+					int size = shuffleBuffer.size();
+					for (int i = 0; i < size; i++) {
+						order[i] = i;
+					}
+					shuffle(order, size);
+
+					int[] featureIndexes = shuffleBuffer.featureIndexes;
+					double[] featureCounts = shuffleBuffer.featureCounts;
+					int[] offsets = shuffleBuffer.offsets;
+					for (int start = 0; start < size; start += batchSize) {
+						int end = Math.min(start + batchSize, size);
+						int numTouched = 0;
+						for (int i = start; i < end; i++) {
+							int datum = order[i];
+							computeActivations(featureIndexes, featureCounts,
+									offsets[datum], offsets[datum + 1], weights,
+									indexLinearizer, activations);
+							double logNormalizer = logSumExp(activations);
+							int goldLabelIndex = shuffleBuffer.labelIndexes[datum];
+							logLoss -= activations[goldLabelIndex] - logNormalizer;
+							for (int labelIndex = 0; labelIndex < numLabels; labelIndex++) {
+								activations[labelIndex] = Math
+										.exp(activations[labelIndex]
+												- logNormalizer);
+							}
+							activations[goldLabelIndex] -= 1.0;
+							for (int j = offsets[datum]; j < offsets[datum + 1]; j++) {
+								int featureIndex = featureIndexes[j];
+								if (batchMarks[featureIndex] != batch) {
+									batchMarks[featureIndex] = batch;
+									touchedFeatures[numTouched++] = featureIndex;
+								}
+								int offset = indexLinearizer
+										.getFeatureOffset(featureIndex);
+								double featureCount = featureCounts[j];
+								for (int labelIndex = 0; labelIndex < numLabels; labelIndex++) {
+									gradients[offset + labelIndex] += activations[labelIndex]
+											* featureCount;
+								}
+							}
+						}
+
+						double scale = 1.0 / (end - start);
+						for (int t = 0; t < numTouched; t++) {
+							int featureIndex = touchedFeatures[t];
+							int offset = indexLinearizer
+									.getFeatureOffset(featureIndex);
+							catchUp(weights, squaredGradientSums, offset,
+									numLabels, penalty, batch
+											- lastUpdates[featureIndex]);
+							for (int i = offset; i < offset + numLabels; i++) {
+								double gradient = gradients[i] * scale
+										+ penalty * weights[i];
+								squaredGradientSums[i] += gradient * gradient;
+								weights[i] -= learningRate * gradient
+										/ (Math.sqrt(squaredGradientSums[i]) + EPSILON);
+								gradients[i] = 0.0;
+							}
+							lastUpdates[featureIndex] = batch + 1;
+						}
+						batch++;
+					}
+				}
+				System.out.println("AdaGrad epoch " + (epoch + 1)
+						+ ": average log loss " + logLoss / numData);
+			}
+			for (int featureIndex = 0; featureIndex < numFeatures; featureIndex++) {
+				catchUp(weights, squaredGradientSums, indexLinearizer
+						.getFeatureOffset(featureIndex), numLabels, penalty,
+						batch - lastUpdates[featureIndex]);
+			}
+			return weights;
+		}
+
+		/**
+		 * Applies the penalty-only updates of the given number of missed
+		 * batches to one feature's block of weights.
+		 */
+		private void catchUp(double[] weights, double[] squaredGradientSums,
+				int offset, int numLabels, double penalty, int missedBatches) {
+			if (missedBatches <= 0 || penalty == 0.0)
+				return;
+			for (int i = offset; i < offset + numLabels; i++) {
+				double rate = learningRate
+						/ (Math.sqrt(squaredGradientSums[i]) + EPSILON);
+				double shrinkage = Math.max(0.0, 1.0 - rate * penalty);
+				weights[i] *= Math.pow(shrinkage, missedBatches);
+			}
+		}
+
+		private void shuffle(int[] order, int size) {
+			for (int i = size - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+		}
+
+		/**
+		 * A positive hashBits hashes features instead of indexing them, as in
+		 * Factory.setHashBits().
+		 */
+		public void setHashBits(int hashBits) {
+			if (hashBits < 0 || hashBits > Encoding.MAX_HASH_BITS)
+				throw new IllegalArgumentException("hashBits must be in [0, "
+						+ Encoding.MAX_HASH_BITS + "]: " + hashBits);
+			this.hashBits = hashBits;
+		}
+
+		/**
+		 * The number of encoded data that are shuffled together. Data further
+		 * apart in the input are never swapped, so the input should not be
+		 * sorted by label; a training set that fits in the buffer is shuffled
+		 * as a whole.
+		 */
+		public void setShuffleBufferSize(int shuffleBufferSize) {
+			if (shuffleBufferSize < 1)
+				throw new IllegalArgumentException(
+						"shuffleBufferSize must be positive: "
+								+ shuffleBufferSize);
+			this.shuffleBufferSize = shuffleBufferSize;
+		}
+
+		/**
+		 * Sigma is the prior variance as in Factory (zero means no penalty),
+		 * epochs the number of passes over the data, batchSize the number of
+		 * data per update and learningRate the base AdaGrad step size.
+		 */
+		public AdaGradFactory(double sigma, int epochs, int batchSize,
+				double learningRate, FeatureExtractor<I, F> featureExtractor) {
+			if (epochs < 0)
+				throw new IllegalArgumentException(
+						"epochs must be non-negative: " + epochs);
+			if (batchSize < 1)
+				throw new IllegalArgumentException(
+						"batchSize must be positive: " + batchSize);
+			if (!(learningRate > 0))
+				throw new IllegalArgumentException(
+						"learningRate must be positive: " + learningRate);
+			this.sigma = sigma;
+			this.epochs = epochs;
+			this.batchSize = batchSize;
+			this.learningRate = learningRate;
+			this.featureExtractor = featureExtractor;
 		}
 	}
 
@@ -186,41 +654,71 @@ public class MaximumEntropyClassifier<I, F, L> implements
 
 		double sigma;
 
+		int numThreads;
+		ForkJoinPool pool;
+		boolean ownsPool;
+		double[][] shardDerivatives;
+
+		// the cache: a copy of the last point evaluated (a buffer owned by this
+		// function and reused), whether that copy is current, its value, its
+		// derivative if that has been computed too (null otherwise), and the
+		// log normalizer of every datum at that point
+		double[] lastX;
+		boolean cacheValid;
 		double lastValue;
 		double[] lastDerivative;
-		double[] lastX;
+		double[] logNormalizers;
 
 		public int dimension() {
 			return indexLinearizer.getNumLinearIndexes();
 		}
 
+		/**
+		 * Line searches probe many points for their value only, so a point that
+		 * is not cached is evaluated without any derivative work.
+		 */
 		public double valueAt(double[] x) {
-			ensureCache(x);
+			if (!isCached(x)) {
+				lastValue = evaluate(x, null, false);
+				lastDerivative = null;
+				snapshot(x);
+			}
 			return lastValue;
 		}
 
+		/**
+		 * If only the value of x is cached, its derivative is computed from the
+		 * log normalizers of that evaluation, and the value is kept.
+		 */
 		public double[] derivativeAt(double[] x) {
-			ensureCache(x);
+			if (!isCached(x)) {
+				double[] derivatives = new double[dimension()];
+				lastValue = evaluate(x, derivatives, false);
+				lastDerivative = derivatives;
+				snapshot(x);
+			} else if (lastDerivative == null) {
+				double[] derivatives = new double[dimension()];
+				evaluate(x, derivatives, true);
+				lastDerivative = derivatives;
+			}
 			return lastDerivative;
 		}
 
-		private void ensureCache(double[] x) {
-			if (requiresUpdate(lastX, x)) {
-				Pair<Double, double[]> currentValueAndDerivative = calculate(x);
-				lastValue = currentValueAndDerivative.getFirst();
-				lastDerivative = currentValueAndDerivative.getSecond();
-				lastX = x;
-			}
+		/**
+		 * A point is cached if its contents equal the copy of the last point,
+		 * so a minimizer that updates its iterate in place cannot make the
+		 * cache stale. The comparison stops at the first coordinate that
+		 * differs, so a miss is usually cheap.
+		 */
+		private boolean isCached(double[] x) {
+			return cacheValid && Arrays.equals(x, lastX);
 		}
 
-		private boolean requiresUpdate(double[] lastX, double[] x) {
-			if (lastX == null)
-				return true;
-			for (int i = 0; i < x.length; i++) {
-				if (lastX[i] != x[i])
-					return true;
-			}
-			return false;
+		private void snapshot(double[] x) {
+			if (lastX == null || lastX.length != x.length)
+				lastX = new double[x.length];
+			System.arraycopy(x, 0, lastX, 0, x.length);
+			cacheValid = true;
 		}
 
 		/**
@@ -228,8 +726,214 @@ public class MaximumEntropyClassifier<I, F, L> implements
 		 * method determines, for the given weight vector x, what the (negative)
 		 * log conditional likelihood of the data is, as well as the derivatives
 		 * of that likelihood wrt each weight parameter.
+		 * <p/>
+		 * Each datum is visited once: its activations and log normalizer are
+		 * computed a single time, and the difference between the expected and
+		 * the observed feature counts is scattered into the derivatives of its
+		 * active features only. One evaluation therefore costs O(total active
+		 * features * labels) rather than O(data * dimension).
 		 */
 		private Pair<Double, double[]> calculate(double[] x) {
+			double[] derivatives = DoubleArrays.constantArray(0.0, dimension());
+			double objective = evaluate(x, derivatives, false);
+			return new Pair<Double, double[]>(objective, derivatives);
+		}
+
+		/**
+		 * The objective alone: only the log normalizers are computed, with no
+		 * exponentiation of label scores and no derivative accumulation.
+		 */
+		double calculateValue(double[] x) {
+			return evaluate(x, null, false);
+		}
+
+		/**
+		 * Computes the objective, and its derivatives unless derivatives is
+		 * null, storing the log normalizer of every datum. This overwrites the
+		 * log normalizers of the cached point, so the cache is cleared. With
+		 * reuseLogNormalizers the stored ones, which must belong to x, are
+		 * used instead of being recomputed.
+		 */
+		private double evaluate(double[] x, double[] derivatives,
+				boolean reuseLogNormalizers) {
+			if (logNormalizers == null)
+				logNormalizers = new double[data.length];
+			if (!reuseLogNormalizers)
+				cacheValid = false;
+			double objective;
+			if (pool == null) {
+				objective = addDataTerms(x, 0, data.length, derivatives,
+						reuseLogNormalizers);
+			} else {
+				objective = addDataTermsInParallel(x, derivatives,
+						reuseLogNormalizers);
+			}
+
+			// penalties (zero sigma means no smoothing)
+			if (sigma != 0.0) {
+				double variance = sigma * sigma;
+				for (int i = 0; i < x.length; i++) {
+					objective += x[i] * x[i] / (2 * variance);
+					if (derivatives != null)
+						derivatives[i] += x[i] / variance;
+				}
+			}
+			return objective;
+		}
+
+		/**
+		 * Adds the derivatives of the data term for data[start, end) into
+		 * derivatives (unless that is null) and returns that part of the
+		 * (negative) log likelihood. The log normalizers of those data are
+		 * stored, or with reuseLogNormalizers read back.
+		 */
+		private double addDataTerms(double[] x, int start, int end,
+				double[] derivatives, boolean reuseLogNormalizers) {
+			double objective = 0.0;
+			int numLabels = encoding.getNumLabels();
+			double[] activations = new double[numLabels];
+
+			for (int i = start; i < end; i++) {
+				EncodedDatum datum = data[i];
+				computeActivations(datum, x, indexLinearizer, activations);
+				double logNormalizer;
+				if (reuseLogNormalizers) {
+					logNormalizer = logNormalizers[i];
+				} else {
+					logNormalizer = logSumExp(activations);
+					logNormalizers[i] = logNormalizer;
+				}
+				int goldLabelIndex = datum.getLabelIndex();
+				objective -= activations[goldLabelIndex] - logNormalizer;
+				if (derivatives == null)
+					continue;
+
+				// turn the activations into (expected - observed) label counts
+				for (int labelIndex = 0; labelIndex < numLabels; labelIndex++) {
+					activations[labelIndex] = Math.exp(activations[labelIndex]
+							- logNormalizer);
+				}
+				activations[goldLabelIndex] -= 1.0;
+				int numActiveFeatures = datum.getNumActiveFeatures();
+				for (int j = 0; j < numActiveFeatures; j++) {
+					int offset = indexLinearizer.getFeatureOffset(datum
+							.getFeatureIndex(j));
+					double featureCount = datum.getFeatureCount(j);
+					for (int labelIndex = 0; labelIndex < numLabels; labelIndex++) {
+						derivatives[offset + labelIndex] += activations[labelIndex]
+								* featureCount;
+					}
+				}
+			}
+			return objective;
+		}
+
+		/**
+		 * Splits the data into one shard per thread, computes each shard's
+		 * value and derivatives into its own buffer on the pool, then sums the
+		 * buffers into derivatives. Shards are always combined in the same
+		 * order, so repeated evaluations give identical results.
+		 */
+		private double addDataTermsInParallel(double[] x, double[] derivatives,
+				boolean reuseLogNormalizers) {
+			boolean computeDerivatives = (derivatives != null);
+			if (computeDerivatives && shardDerivatives == null) {
+				shardDerivatives = new double[numThreads][dimension()];
+			}
+			double[] shardValues = new double[numThreads];
+			pool.invoke(new ShardTask(x, 0, numThreads, shardValues,
+					computeDerivatives, reuseLogNormalizers));
+			if (computeDerivatives)
+				pool.invoke(new ReduceTask(0, derivatives.length, derivatives));
+			double objective = 0.0;
+			for (int shard = 0; shard < numThreads; shard++) {
+				objective += shardValues[shard];
+			}
+			return objective;
+		}
+
+		private int getShardStart(int shard) {
+			return (int) ((long) data.length * shard / numThreads);
+		}
+
+		class ShardTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			double[] x;
+			int firstShard;
+			int lastShard;
+			double[] shardValues;
+			boolean computeDerivatives;
+			boolean reuseLogNormalizers;
+
+			protected void compute() {
+				if (lastShard - firstShard == 1) {
+					double[] derivatives = null;
+					if (computeDerivatives) {
+						derivatives = shardDerivatives[firstShard];
+						Arrays.fill(derivatives, 0.0);
+					}
+					shardValues[firstShard] = addDataTerms(x,
+							getShardStart(firstShard),
+							getShardStart(firstShard + 1), derivatives,
+							reuseLogNormalizers);
+					return;
+				}
+				int middleShard = (firstShard + lastShard) / 2;
+				invokeAll(new ShardTask(x, firstShard, middleShard,
+						shardValues, computeDerivatives, reuseLogNormalizers),
+						new ShardTask(x, middleShard, lastShard, shardValues,
+								computeDerivatives, reuseLogNormalizers));
+			}
+
+			ShardTask(double[] x, int firstShard, int lastShard,
+					double[] shardValues, boolean computeDerivatives,
+					boolean reuseLogNormalizers) {
+				this.x = x;
+				this.firstShard = firstShard;
+				this.lastShard = lastShard;
+				this.shardValues = shardValues;
+				this.computeDerivatives = computeDerivatives;
+				this.reuseLogNormalizers = reuseLogNormalizers;
+			}
+		}
+
+		class ReduceTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			static final int BLOCK_SIZE = 1 << 14;
+
+			int start;
+			int end;
+			double[] derivatives;
+
+			protected void compute() {
+				if (end - start <= BLOCK_SIZE) {
+					for (double[] shard : shardDerivatives) {
+						for (int i = start; i < end; i++) {
+							derivatives[i] += shard[i];
+						}
+					}
+					return;
+				}
+				int middle = (start + end) >>> 1;
+				invokeAll(new ReduceTask(start, middle, derivatives),
+						new ReduceTask(middle, end, derivatives));
+			}
+
+			ReduceTask(int start, int end, double[] derivatives) {
+				this.start = start;
+				this.end = end;
+				this.derivatives = derivatives;
+			}
+		}
+
+		/**
+		 * The original, exhaustive version of calculate(), which visits every
+		 * linear index for every datum. It is far too slow for real data, but
+		 * it is kept so that calculate() can be checked against it on small
+		 * problems (see main()).
+		 */
+		Pair<Double, double[]> calculateReference(double[] x) {
 			double objective = 0.0;
 			double[] derivatives = DoubleArrays.constantArray(0.0, dimension());
 			// TODO: compute the objective and its derivatives
@@ -299,10 +1003,45 @@ public class MaximumEntropyClassifier<I, F, L> implements
 
 		public ObjectiveFunction(Encoding<F, L> encoding, EncodedDatum[] data,
 				IndexLinearizer indexLinearizer, double sigma) {
+			this(encoding, data, indexLinearizer, sigma, 1);
+		}
+
+		/**
+		 * With numThreads > 1 the data is split into that many shards, which
+		 * are evaluated on a fork-join pool of numThreads threads that this
+		 * function creates and owns; call shutdown() when done with it. The
+		 * result matches the sequential evaluation up to floating-point
+		 * rounding.
+		 */
+		public ObjectiveFunction(Encoding<F, L> encoding, EncodedDatum[] data,
+				IndexLinearizer indexLinearizer, double sigma, int numThreads) {
+			this(encoding, data, indexLinearizer, sigma, numThreads,
+					numThreads > 1 ? new ForkJoinPool(numThreads) : null);
+			this.ownsPool = (pool != null);
+		}
+
+		/**
+		 * As above, but the shards are evaluated on the given pool, which the
+		 * caller owns and shuts down. A null pool means sequential evaluation.
+		 */
+		public ObjectiveFunction(Encoding<F, L> encoding, EncodedDatum[] data,
+				IndexLinearizer indexLinearizer, double sigma, int numThreads,
+				ForkJoinPool pool) {
 			this.indexLinearizer = indexLinearizer;
 			this.encoding = encoding;
 			this.data = data;
 			this.sigma = sigma;
+			this.numThreads = numThreads;
+			this.pool = (numThreads > 1 ? pool : null);
+		}
+
+		/**
+		 * Shuts down the pool if this function created it; a pool passed in
+		 * by the caller is left alone.
+		 */
+		public void shutdown() {
+			if (ownsPool)
+				pool.shutdown();
 		}
 	}
 
@@ -318,6 +1057,8 @@ public class MaximumEntropyClassifier<I, F, L> implements
 		public static <F, L> EncodedDatum encodeDatum(
 				FeatureVector<F> featureVector, Encoding<F, L> encoding) {
 			Counter<F> features = featureVector.getFeatures();
+			if (encoding.isHashed())
+				return encodeHashedDatum(features, encoding);
 			Counter<F> knownFeatures = new Counter<F>();
 			for (F feature : features.keySet()) {
 				if (encoding.getFeatureIndex(feature) < 0)
@@ -341,6 +1082,41 @@ public class MaximumEntropyClassifier<I, F, L> implements
 			return encodedDatum;
 		}
 
+		/**
+		 * Hashed features may collide, so the signed counts of features that
+		 * land in the same slot are summed.
+		 */
+		private static <F, L> EncodedDatum encodeHashedDatum(
+				Counter<F> features, Encoding<F, L> encoding) {
+			int[] featureIndexes = new int[features.size()];
+			double[] featureCounts = new double[features.size()];
+			int numActiveFeatures = 0;
+			for (F feature : features.keySet()) {
+				int hashCode = feature.hashCode();
+				int index = encoding.getHashedFeatureIndex(hashCode);
+				double count = encoding.getHashedFeatureSign(hashCode)
+						* features.getCount(feature);
+				// insertion sort by index, merging collisions
+				int position = numActiveFeatures;
+				while (position > 0 && featureIndexes[position - 1] > index)
+					position--;
+				if (position > 0 && featureIndexes[position - 1] == index) {
+					featureCounts[position - 1] += count;
+					continue;
+				}
+				System.arraycopy(featureIndexes, position, featureIndexes,
+						position + 1, numActiveFeatures - position);
+				System.arraycopy(featureCounts, position, featureCounts,
+						position + 1, numActiveFeatures - position);
+				featureIndexes[position] = index;
+				featureCounts[position] = count;
+				numActiveFeatures++;
+			}
+			return new EncodedDatum(-1, Arrays.copyOf(featureIndexes,
+					numActiveFeatures), Arrays.copyOf(featureCounts,
+					numActiveFeatures));
+		}
+
 		public static <F, L> EncodedDatum encodeLabeledDatum(
 				LabeledFeatureVector<F, L> labeledDatum, Encoding<F, L> encoding) {
 			EncodedDatum encodedDatum = encodeDatum(labeledDatum, encoding);
@@ -352,28 +1128,136 @@ public class MaximumEntropyClassifier<I, F, L> implements
 		int labelIndex;
 		int[] featureIndexes;
 		double[] featureCounts;
+		int offset;
+		int numActiveFeatures;
 
 		public int getLabelIndex() {
 			return labelIndex;
 		}
 
 		public int getNumActiveFeatures() {
-			return featureCounts.length;
+			return numActiveFeatures;
 		}
 
 		public int getFeatureIndex(int num) {
-			return featureIndexes[num];
+			return featureIndexes[offset + num];
 		}
 
 		public double getFeatureCount(int num) {
-			return featureCounts[num];
+			return featureCounts[offset + num];
 		}
 
 		public EncodedDatum(int labelIndex, int[] featureIndexes,
 				double[] featureCounts) {
+			this(labelIndex, featureIndexes, featureCounts, 0,
+					featureCounts.length);
+		}
+
+		/**
+		 * A datum whose features are the numActiveFeatures entries starting at
+		 * offset in the (possibly shared) featureIndexes and featureCounts.
+		 */
+		public EncodedDatum(int labelIndex, int[] featureIndexes,
+				double[] featureCounts, int offset, int numActiveFeatures) {
 			this.labelIndex = labelIndex;
 			this.featureIndexes = featureIndexes;
 			this.featureCounts = featureCounts;
+			this.offset = offset;
+			this.numActiveFeatures = numActiveFeatures;
+		}
+	}
+
+	/**
+	 * An EncodedDataset holds a whole encoded training set in compressed
+	 * sparse row form: the feature indexes and counts of all data are
+	 * concatenated into one int[] and one double[], and datum i owns the
+	 * entries from offsets[i] to offsets[i + 1]. Data are appended one at a
+	 * time with startDatum(), addFeature() and finishDatum(); getData() then
+	 * returns EncodedDatum views onto the shared arrays.
+	 */
+	public static class EncodedDataset {
+		int size;
+		int[] labelIndexes = new int[1024];
+		int[] offsets = new int[1025];
+		int[] featureIndexes = new int[16 * 1024];
+		double[] featureCounts = new double[16 * 1024];
+		long[] sortKeys = new long[64];
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Removes all data but keeps the arrays, so the dataset can be refilled
+		 * without allocating.
+		 */
+		public void clear() {
+			size = 0;
+		}
+
+		public void startDatum(int labelIndex) {
+			if (size + 1 == offsets.length) {
+				labelIndexes = Arrays.copyOf(labelIndexes, 2 * size);
+				offsets = Arrays.copyOf(offsets, 2 * size + 1);
+			}
+			labelIndexes[size] = labelIndex;
+			offsets[size + 1] = offsets[size];
+		}
+
+		public void addFeature(int featureIndex, double featureCount) {
+			int end = offsets[size + 1];
+			if (end == featureIndexes.length) {
+				featureIndexes = Arrays.copyOf(featureIndexes, 2 * end);
+				featureCounts = Arrays.copyOf(featureCounts, 2 * end);
+			}
+			featureIndexes[end] = featureIndex;
+			featureCounts[end] = featureCount;
+			offsets[size + 1] = end + 1;
+		}
+
+		/**
+		 * Completes the current datum. With mergeDuplicates (needed when
+		 * features are hashed) its features are sorted by index and the counts
+		 * of repeated indexes are summed.
+		 */
+		public void finishDatum(boolean mergeDuplicates) {
+			if (mergeDuplicates)
+				mergeDuplicates(offsets[size], offsets[size + 1]);
+			size++;
+		}
+
+		private void mergeDuplicates(int start, int end) {
+			int numFeatures = end - start;
+			if (sortKeys.length < numFeatures)
+				sortKeys = new long[2 * numFeatures];
+			for (int j = 0; j < numFeatures; j++) {
+				sortKeys[j] = ((long) featureIndexes[start + j] << 32) | j;
+			}
+			Arrays.sort(sortKeys, 0, numFeatures);
+			// counts are read from their original positions, so copy first
+			double[] counts = Arrays.copyOfRange(featureCounts, start, end);
+			int last = start - 1;
+			for (int j = 0; j < numFeatures; j++) {
+				int featureIndex = (int) (sortKeys[j] >>> 32);
+				double featureCount = counts[(int) sortKeys[j]];
+				if (last >= start && featureIndexes[last] == featureIndex) {
+					featureCounts[last] += featureCount;
+				} else {
+					last++;
+					featureIndexes[last] = featureIndex;
+					featureCounts[last] = featureCount;
+				}
+			}
+			offsets[size + 1] = last + 1;
+		}
+
+		public EncodedDatum[] getData() {
+			EncodedDatum[] data = new EncodedDatum[size];
+			for (int i = 0; i < size; i++) {
+				data[i] = new EncodedDatum(labelIndexes[i], featureIndexes,
+						featureCounts, offsets[i], offsets[i + 1] - offsets[i]);
+			}
+			return data;
 		}
 	}
 
@@ -385,20 +1269,69 @@ public class MaximumEntropyClassifier<I, F, L> implements
 	 * representatiosn: numbers between 0 and getNumLabels() or getNumFeatures()
 	 * (exclusive). The inverses of this map are the getLabel() and getFeature()
 	 * functions.
+	 * <p/>
+	 * A hashed Encoding keeps no feature Indexer. A feature's index is taken
+	 * from its (mixed) hash code modulo 2^hashBits, and every feature is known.
+	 * Another bit of the hash gives the feature a sign, which makes collisions
+	 * cancel out in expectation; getFeatureSign() returns it and the encoders
+	 * multiply counts by it. getFeature() is not available in this mode.
 	 */
 	public static class Encoding<F, L> {
+		static final int MAX_HASH_BITS = 24;
+
 		Indexer<F> featureIndexer;
 		Indexer<L> labelIndexer;
+		int hashBits;
+
+		public boolean isHashed() {
+			return featureIndexer == null;
+		}
 
 		public int getNumFeatures() {
+			if (isHashed())
+				return 1 << hashBits;
 			return featureIndexer.size();
 		}
 
 		public int getFeatureIndex(F feature) {
+			if (isHashed())
+				return getHashedFeatureIndex(feature.hashCode());
 			return featureIndexer.indexOf(feature);
 		}
 
+		/**
+		 * The sign multiplying the count of this feature: always 1 unless the
+		 * encoding is hashed.
+		 */
+		public double getFeatureSign(F feature) {
+			if (isHashed())
+				return getHashedFeatureSign(feature.hashCode());
+			return 1.0;
+		}
+
+		int getHashedFeatureIndex(int hashCode) {
+			return mix(hashCode) & ((1 << hashBits) - 1);
+		}
+
+		double getHashedFeatureSign(int hashCode) {
+			return mix(hashCode) < 0 ? -1.0 : 1.0;
+		}
+
+		// the MurmurHash3 finalizer, so that similar hash codes spread out
+		private static int mix(int hashCode) {
+			int h = hashCode;
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
+
 		public F getFeature(int featureIndex) {
+			if (isHashed())
+				throw new UnsupportedOperationException(
+						"Feature names are not kept by a hashed encoding");
 			return featureIndexer.get(featureIndex);
 		}
 
@@ -418,6 +1351,11 @@ public class MaximumEntropyClassifier<I, F, L> implements
 			this.featureIndexer = featureIndexer;
 			this.labelIndexer = labelIndexer;
 		}
+
+		public Encoding(int hashBits, Indexer<L> labelIndexer) {
+			this.hashBits = hashBits;
+			this.labelIndexer = labelIndexer;
+		}
 	}
 
 	/**
@@ -427,6 +1365,10 @@ public class MaximumEntropyClassifier<I, F, L> implements
 	 * the optimization code expects one long vector for lambdas and
 	 * derivatives. To go from a pair featureIndex, labelIndex to a single
 	 * pairIndex, use getLinearIndex().
+	 * <p/>
+	 * The weights of all labels for one feature form one contiguous block,
+	 * starting at getFeatureOffset(featureIndex), so scoring a datum reads one
+	 * block per active feature.
 	 */
 	public static class IndexLinearizer {
 		int numFeatures;
@@ -441,6 +1383,10 @@ public class MaximumEntropyClassifier<I, F, L> implements
             return labelIndex + featureIndex * numLabels;
         }
 
+		public int getFeatureOffset(int featureIndex) {
+			return featureIndex * numLabels;
+		}
+
 
 		public int getFeatureIndex(int linearIndex) {
 			return linearIndex / numLabels;
@@ -457,10 +1403,58 @@ public class MaximumEntropyClassifier<I, F, L> implements
 	}
 
 	private double[] weights;
+	private DoubleBuffer mappedWeights;
 	private Encoding<F, L> encoding;
 	private IndexLinearizer indexLinearizer;
 	private FeatureExtractor<I, F> featureExtractor;
 
+	/**
+	 * Per-thread scratch space for classification, so that classifying an
+	 * input allocates nothing beyond what the feature extractor returns.
+	 */
+	private static class ScoringBuffers {
+		int[] featureIndexes = new int[64];
+		double[] featureCounts = new double[64];
+		FeatureBuffer hashedFeatures = new FeatureBuffer();
+		double[] activations;
+		int[] candidateLabelIndexes;
+		// candidateStamps[label] == candidateStamp marks a label as already
+		// found among the current input's candidates
+		int[] candidateStamps;
+		int candidateStamp;
+		int[] bestLabelIndexes = new int[8];
+
+		ScoringBuffers(int numLabels) {
+			activations = new double[numLabels];
+			candidateLabelIndexes = new int[numLabels];
+			candidateStamps = new int[numLabels];
+		}
+	}
+
+	private final ThreadLocal<ScoringBuffers> scoringBuffers = new ThreadLocal<ScoringBuffers>() {
+		protected ScoringBuffers initialValue() {
+			return new ScoringBuffers(encoding.getNumLabels());
+		}
+	};
+
+	/**
+	 * Numerically stable log(sum_i exp(values[i])).
+	 */
+	private static double logSumExp(double[] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] > max)
+				max = values[i];
+		}
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+			return max;
+		double sum = 0.0;
+		for (int i = 0; i < values.length; i++) {
+			sum += Math.exp(values[i] - max);
+		}
+		return max + Math.log(sum);
+	}
+
 	/**
 	 * Calculate the log probabilities of each class, for the given datum
 	 * (feature bundle). Note that the weighted votes (refered to as
@@ -469,64 +1463,330 @@ public class MaximumEntropyClassifier<I, F, L> implements
 	private static <F, L> double[] getLogProbabilities(EncodedDatum datum,
 			double[] weights, Encoding<F, L> encoding,
 			IndexLinearizer indexLinearizer) {
-		// TODO: apply the classifier to this feature vector
-        int numFeatures = encoding.getNumFeatures();
-        int numLabels = encoding.getNumLabels();
-        int numDatumFeatures = datum.getNumActiveFeatures();
-		
-        double[] logProbabilities = DoubleArrays.constantArray(
-				0.0, numLabels);
-        
-        double sumProbabilities = 0.0;
-        for (int i = 0; i < numLabels; i++){
-            for (int j = 0; j < numDatumFeatures; j++){
-
-                int FeatureIndex = datum.getFeatureIndex(j);
-                
-                logProbabilities[i] = weights[indexLinearizer.getLinearIndex(FeatureIndex,i)] * datum.getFeatureCount(j) + logProbabilities[i];
-             
-            }
-            logProbabilities[i] = Math.exp(logProbabilities[i]); 
-            sumProbabilities = sumProbabilities + logProbabilities[i];
-        }
-        
-        for (int i = 0; i < numLabels; i++){
-            logProbabilities[i] = Math.log(logProbabilities[i]/sumProbabilities);
-        }
-
+		double[] logProbabilities = new double[encoding.getNumLabels()];
+		computeActivations(datum, weights, indexLinearizer, logProbabilities);
+		double logNormalizer = logSumExp(logProbabilities);
+		for (int labelIndex = 0; labelIndex < logProbabilities.length; labelIndex++) {
+			logProbabilities[labelIndex] -= logNormalizer;
+		}
 		return logProbabilities;
+	}
 
-		// TODO
+	/**
+	 * The scoring kernel shared by training and classification: fills
+	 * activations (one entry per label) with the weighted votes for the datum.
+	 * For each active feature the label weights are read from that feature's
+	 * contiguous block in the weight vector.
+	 */
+	private static void computeActivations(EncodedDatum datum,
+			double[] weights, IndexLinearizer indexLinearizer,
+			double[] activations) {
+		computeActivations(datum.featureIndexes, datum.featureCounts,
+				datum.offset, datum.offset + datum.getNumActiveFeatures(),
+				weights, indexLinearizer, activations);
 	}
 
-	public Counter<L> getProbabilities(I input) {
-		FeatureVector<F> featureVector = new BasicFeatureVector<F>(
-				featureExtractor.extractFeatures(input));
-		return getProbabilities(featureVector);
+	private static void computeActivations(int[] featureIndexes,
+			double[] featureCounts, int start, int end, double[] weights,
+			IndexLinearizer indexLinearizer, double[] activations) {
+		int numLabels = activations.length;
+		Arrays.fill(activations, 0.0);
+		for (int j = start; j < end; j++) {
+			int offset = indexLinearizer.getFeatureOffset(featureIndexes[j]);
+			double featureCount = featureCounts[j];
+			for (int labelIndex = 0; labelIndex < numLabels; labelIndex++) {
+				activations[labelIndex] += weights[offset + labelIndex]
+						* featureCount;
+			}
+		}
+	}
+
+	/**
+	 * The same kernel for weights that live in a (memory-mapped) buffer.
+	 */
+	private static void computeActivations(int[] featureIndexes,
+			double[] featureCounts, int numActiveFeatures,
+			DoubleBuffer weights, IndexLinearizer indexLinearizer,
+			double[] activations) {
+		int numLabels = activations.length;
+		Arrays.fill(activations, 0.0);
+		for (int j = 0; j < numActiveFeatures; j++) {
+			int offset = indexLinearizer.getFeatureOffset(featureIndexes[j]);
+			double featureCount = featureCounts[j];
+			for (int labelIndex = 0; labelIndex < numLabels; labelIndex++) {
+				activations[labelIndex] += weights.get(offset + labelIndex)
+						* featureCount;
+			}
+		}
+	}
+
+	/**
+	 * Classifies every input in order. The index of the best label for the
+	 * i-th input is stored in labelIndexes[i] (use getLabelForIndex() to get
+	 * the label itself). If probabilities is not null, probabilities[i] must
+	 * have getNumLabels() entries and receives the distribution over labels
+	 * for the i-th input.
+	 */
+	public void classify(Iterable<? extends I> inputs, int[] labelIndexes,
+			double[][] probabilities) {
+		int i = 0;
+		for (I input : inputs) {
+			labelIndexes[i] = classify(input, probabilities == null ? null
+					: probabilities[i]);
+			i++;
+		}
+	}
+
+	/**
+	 * Classifies a single input and returns the index of its best label.
+	 * If probabilities is not null it receives the distribution over labels;
+	 * otherwise no normalization is done at all.
+	 */
+	public int classify(I input, double[] probabilities) {
+		ScoringBuffers buffers = scoringBuffers.get();
+		double[] activations = computeActivations(input, buffers);
+		int bestLabelIndex = 0;
+		for (int labelIndex = 1; labelIndex < activations.length; labelIndex++) {
+			if (activations[labelIndex] > activations[bestLabelIndex])
+				bestLabelIndex = labelIndex;
+		}
+		if (probabilities != null) {
+			double logNormalizer = logSumExp(activations);
+			for (int labelIndex = 0; labelIndex < activations.length; labelIndex++) {
+				probabilities[labelIndex] = Math.exp(activations[labelIndex]
+						- logNormalizer);
+			}
+		}
+		return bestLabelIndex;
+	}
+
+	/**
+	 * Returns the (at most) k best labels for the input, best first. Only the
+	 * activations are compared, so nothing is exponentiated or normalized.
+	 * A k of zero gives an empty list; a negative k is rejected.
+	 */
+	public List<L> getBestLabels(I input, int k) {
+		checkNumBest(k);
+		if (k == 0)
+			return new ArrayList<L>(0);
+		ScoringBuffers buffers = scoringBuffers.get();
+		double[] activations = computeActivations(input, buffers);
+		int numBest = selectBestLabels(activations, k, buffers);
+		List<L> bestLabels = new ArrayList<L>(numBest);
+		for (int i = 0; i < numBest; i++) {
+			bestLabels.add(encoding.getLabel(buffers.bestLabelIndexes[i]));
+		}
+		return bestLabels;
+	}
+
+	/**
+	 * Returns the (at most) k best labels for the input, best first, paired
+	 * with their probabilities. Only those k probabilities are exponentiated.
+	 * A k of zero gives an empty list; a negative k is rejected.
+	 */
+	public List<Pair<L, Double>> getBestLabelProbabilities(I input, int k) {
+		checkNumBest(k);
+		if (k == 0)
+			return new ArrayList<Pair<L, Double>>(0);
+		ScoringBuffers buffers = scoringBuffers.get();
+		double[] activations = computeActivations(input, buffers);
+		int numBest = selectBestLabels(activations, k, buffers);
+		double logNormalizer = logSumExp(activations);
+		List<Pair<L, Double>> bestLabels = new ArrayList<Pair<L, Double>>(
+				numBest);
+		for (int i = 0; i < numBest; i++) {
+			int labelIndex = buffers.bestLabelIndexes[i];
+			bestLabels.add(new Pair<L, Double>(encoding.getLabel(labelIndex),
+					Math.exp(activations[labelIndex] - logNormalizer)));
+		}
+		return bestLabels;
+	}
+
+	private static void checkNumBest(int k) {
+		if (k < 0)
+			throw new IllegalArgumentException(
+					"k must be non-negative: " + k);
 	}
 
-	private Counter<L> getProbabilities(FeatureVector<F> featureVector) {
-		EncodedDatum encodedDatum = EncodedDatum.encodeDatum(featureVector,
-				encoding);
-		double[] logProbabilities = getLogProbabilities(encodedDatum, weights,
-				encoding, indexLinearizer);
-		return logProbabiltyArrayToProbabiltyCounter(logProbabilities);
+	/**
+	 * Puts the indexes of the (at most) k highest finite activations into
+	 * buffers.bestLabelIndexes, best first, by insertion into a sorted
+	 * prefix; returns how many there are. Costs O(labels * k); k must be
+	 * positive.
+	 */
+	private static int selectBestLabels(double[] activations, int k,
+			ScoringBuffers buffers) {
+		if (buffers.bestLabelIndexes.length < k)
+			buffers.bestLabelIndexes = new int[k];
+		int[] best = buffers.bestLabelIndexes;
+		int numBest = 0;
+		for (int labelIndex = 0; labelIndex < activations.length; labelIndex++) {
+			double activation = activations[labelIndex];
+			if (activation == Double.NEGATIVE_INFINITY)
+				continue;
+			if (numBest == k && activation <= activations[best[k - 1]])
+				continue;
+			int position = (numBest < k ? numBest++ : k - 1);
+			while (position > 0 && activations[best[position - 1]] < activation) {
+				best[position] = best[position - 1];
+				position--;
+			}
+			best[position] = labelIndex;
+		}
+		return numBest;
+	}
+
+	/**
+	 * Fills buffers.activations for the input and returns it. If the feature
+	 * extractor restricts the candidate labels, only those are scored and the
+	 * rest are set to negative infinity.
+	 */
+	private double[] computeActivations(I input, ScoringBuffers buffers) {
+		int numActiveFeatures = encodeFeatures(input, buffers);
+		double[] activations = buffers.activations;
+		int numCandidates = findCandidateLabels(input, buffers);
+		if (numCandidates >= 0) {
+			int[] candidates = buffers.candidateLabelIndexes;
+			Arrays.fill(activations, Double.NEGATIVE_INFINITY);
+			for (int c = 0; c < numCandidates; c++) {
+				activations[candidates[c]] = 0.0;
+			}
+			for (int j = 0; j < numActiveFeatures; j++) {
+				int offset = indexLinearizer
+						.getFeatureOffset(buffers.featureIndexes[j]);
+				double featureCount = buffers.featureCounts[j];
+				for (int c = 0; c < numCandidates; c++) {
+					int labelIndex = candidates[c];
+					activations[labelIndex] += getWeight(offset + labelIndex)
+							* featureCount;
+				}
+			}
+		} else if (mappedWeights != null) {
+			computeActivations(buffers.featureIndexes, buffers.featureCounts,
+					numActiveFeatures, mappedWeights, indexLinearizer,
+					activations);
+		} else {
+			computeActivations(buffers.featureIndexes, buffers.featureCounts,
+					0, numActiveFeatures, weights, indexLinearizer, activations);
+		}
+		return activations;
+	}
+
+	/**
+	 * Writes the indexes of the distinct known candidate labels for the input
+	 * into buffers.candidateLabelIndexes and returns how many there are; -1
+	 * means every label is a candidate. Throws if candidates are given but
+	 * none of them is known.
+	 */
+	private int findCandidateLabels(I input, ScoringBuffers buffers) {
+		if (!(featureExtractor instanceof LabelCandidateExtractor))
+			return -1;
+		// the extractor classifies inputs of type I into labels of type L
+		@SuppressWarnings("unchecked")
+		LabelCandidateExtractor<I, L> candidateExtractor = (LabelCandidateExtractor<I, L>) featureExtractor;
+		Collection<L> candidateLabels = candidateExtractor
+				.getCandidateLabels(input);
+		if (candidateLabels == null)
+			return -1;
+		int stamp = ++buffers.candidateStamp;
+		if (stamp == 0) {
+			// the stamp wrapped around, so old marks could match again
+			Arrays.fill(buffers.candidateStamps, 0);
+			stamp = buffers.candidateStamp = 1;
+		}
+		int numCandidates = 0;
+		for (L label : candidateLabels) {
+			int labelIndex = encoding.getLabelIndex(label);
+			if (labelIndex < 0 || buffers.candidateStamps[labelIndex] == stamp)
+				continue;
+			buffers.candidateStamps[labelIndex] = stamp;
+			buffers.candidateLabelIndexes[numCandidates++] = labelIndex;
+		}
+		if (numCandidates == 0)
+			throw new IllegalArgumentException("None of the candidate labels "
+					+ candidateLabels + " is known to the classifier");
+		return numCandidates;
+	}
+
+	private double getWeight(int linearIndex) {
+		return (weights != null ? weights[linearIndex] : mappedWeights
+				.get(linearIndex));
 	}
 
-	private Counter<L> logProbabiltyArrayToProbabiltyCounter(
-			double[] logProbabilities) {
+	/**
+	 * Writes the known features of the input into the scratch arrays and
+	 * returns how many there are. With a hashed encoding and a
+	 * HashedFeatureExtractor no feature objects are created at all.
+	 */
+	private int encodeFeatures(I input, ScoringBuffers buffers) {
+		int numActiveFeatures = 0;
+		HashedFeatureExtractor<I> hashedFeatureExtractor = Factory
+				.getHashedFeatureExtractor(encoding, featureExtractor);
+		if (hashedFeatureExtractor != null) {
+			FeatureBuffer hashedFeatures = buffers.hashedFeatures;
+			hashedFeatures.clear();
+			hashedFeatureExtractor.extractFeatureHashCodes(input,
+					hashedFeatures);
+			for (int j = 0; j < hashedFeatures.size(); j++) {
+				int hashCode = hashedFeatures.hashCodes[j];
+				numActiveFeatures = addFeature(buffers, numActiveFeatures,
+						encoding.getHashedFeatureIndex(hashCode),
+						encoding.getHashedFeatureSign(hashCode)
+								* hashedFeatures.counts[j]);
+			}
+			return numActiveFeatures;
+		}
+		Counter<F> features = featureExtractor.extractFeatures(input);
+		for (F feature : features.keySet()) {
+			int featureIndex = encoding.getFeatureIndex(feature);
+			if (featureIndex < 0)
+				continue;
+			numActiveFeatures = addFeature(buffers, numActiveFeatures,
+					featureIndex, encoding.getFeatureSign(feature)
+							* features.getCount(feature));
+		}
+		return numActiveFeatures;
+	}
+
+	private static int addFeature(ScoringBuffers buffers,
+			int numActiveFeatures, int featureIndex, double featureCount) {
+		if (numActiveFeatures == buffers.featureIndexes.length) {
+			buffers.featureIndexes = Arrays.copyOf(buffers.featureIndexes,
+					2 * numActiveFeatures);
+			buffers.featureCounts = Arrays.copyOf(buffers.featureCounts,
+					2 * numActiveFeatures);
+		}
+		buffers.featureIndexes[numActiveFeatures] = featureIndex;
+		buffers.featureCounts[numActiveFeatures] = featureCount;
+		return numActiveFeatures + 1;
+	}
+
+	public int getNumLabels() {
+		return encoding.getNumLabels();
+	}
+
+	public L getLabelForIndex(int labelIndex) {
+		return encoding.getLabel(labelIndex);
+	}
+
+	public Counter<L> getProbabilities(I input) {
+		double[] probabilities = new double[encoding.getNumLabels()];
+		classify(input, probabilities);
+		return probabilityArrayToProbabilityCounter(probabilities);
+	}
+
+	private Counter<L> probabilityArrayToProbabilityCounter(
+			double[] probabilities) {
 		Counter<L> probabiltyCounter = new Counter<L>();
-		for (int labelIndex = 0; labelIndex < logProbabilities.length; labelIndex++) {
-			double logProbability = logProbabilities[labelIndex];
-			double probability = Math.exp(logProbability);
+		for (int labelIndex = 0; labelIndex < probabilities.length; labelIndex++) {
 			L label = encoding.getLabel(labelIndex);
-			probabiltyCounter.setCount(label, probability);
+			probabiltyCounter.setCount(label, probabilities[labelIndex]);
 		}
 		return probabiltyCounter;
 	}
 
 	public L getLabel(I input) {
-		return getProbabilities(input).argMax();
+		return encoding.getLabel(classify(input, null));
 	}
 
 	public MaximumEntropyClassifier(double[] weights, Encoding<F, L> encoding,
@@ -538,6 +1798,151 @@ public class MaximumEntropyClassifier<I, F, L> implements
 		this.featureExtractor = featureExtractor;
 	}
 
+	private MaximumEntropyClassifier(DoubleBuffer mappedWeights,
+			Encoding<F, L> encoding, IndexLinearizer indexLinearizer,
+			FeatureExtractor<I, F> featureExtractor) {
+		this.mappedWeights = mappedWeights;
+		this.encoding = encoding;
+		this.indexLinearizer = indexLinearizer;
+		this.featureExtractor = featureExtractor;
+	}
+
+	private static final int MODEL_MAGIC = 0x4d584e54; // "MXNT"
+	private static final int MODEL_VERSION = 2;
+	private static final int MODEL_HEADER_SIZE = 6 * 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Writes this classifier (but not its feature extractor) to a binary
+	 * model file with this layout:
+	 * <p/>
+	 * magic, version, numLabels, numFeatures, hashBits and the dictionary
+	 * length, as big-endian ints; the dictionary, which is the label list
+	 * followed (unless the encoding is hashed) by the feature list, each a
+	 * count and then every entry as a length-prefixed UTF-8 string; zero
+	 * padding up to a multiple of eight bytes; and finally the numFeatures *
+	 * numLabels weights as big-endian doubles in IndexLinearizer order.
+	 * <p/>
+	 * Labels and features are written as their toString(), so a loaded
+	 * classifier has String labels and features.
+	 */
+	public void save(File file) throws IOException {
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+		DataOutputStream dictionaryOut = new DataOutputStream(dictionary);
+		writeStrings(dictionaryOut, encoding.labelIndexer);
+		if (!encoding.isHashed())
+			writeStrings(dictionaryOut, encoding.featureIndexer);
+		dictionaryOut.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MODEL_MAGIC);
+			out.writeInt(MODEL_VERSION);
+			out.writeInt(encoding.getNumLabels());
+			out.writeInt(encoding.getNumFeatures());
+			out.writeInt(encoding.hashBits);
+			out.writeInt(dictionary.size());
+			dictionary.writeTo(out);
+			int headerSize = MODEL_HEADER_SIZE + dictionary.size();
+			for (int i = headerSize; i < alignToDouble(headerSize); i++) {
+				out.writeByte(0);
+			}
+			int numWeights = indexLinearizer.getNumLinearIndexes();
+			for (int i = 0; i < numWeights; i++) {
+				out.writeDouble(mappedWeights != null ? mappedWeights.get(i)
+						: weights[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads a classifier written by save(). Only the dictionaries are read
+	 * into the heap: the weights are memory-mapped and used in place, so
+	 * loading is nearly instant and processes on the same host that load
+	 * the same file share one copy of the weights through the page cache.
+	 * The weight block is limited to 2GB.
+	 */
+	public static <I> MaximumEntropyClassifier<I, String, String> load(
+			File file, FeatureExtractor<I, String> featureExtractor)
+			throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MODEL_MAGIC)
+				throw new IOException("Not a maximum entropy model: " + file);
+			int version = buffer.getInt();
+			if (version != MODEL_VERSION)
+				throw new IOException("Unsupported model version " + version
+						+ ": " + file);
+			int numLabels = buffer.getInt();
+			int numFeatures = buffer.getInt();
+			int hashBits = buffer.getInt();
+			int dictionaryEnd = buffer.getInt() + MODEL_HEADER_SIZE;
+
+			Indexer<String> labelIndexer = readStringIndexer(buffer, file);
+			Indexer<String> featureIndexer = (hashBits == 0 ? readStringIndexer(
+					buffer, file) : null);
+			if (buffer.position() != dictionaryEnd)
+				throw new IOException("Corrupt dictionaries in " + file);
+			Encoding<String, String> encoding = (hashBits == 0 ? new Encoding<String, String>(
+					featureIndexer, labelIndexer)
+					: new Encoding<String, String>(hashBits, labelIndexer));
+			if (encoding.getNumLabels() != numLabels
+					|| encoding.getNumFeatures() != numFeatures)
+				throw new IOException("Inconsistent dictionaries in " + file);
+
+			buffer.position(alignToDouble(buffer.position()));
+			DoubleBuffer weights = buffer.slice().asDoubleBuffer();
+			IndexLinearizer indexLinearizer = new IndexLinearizer(numFeatures,
+					numLabels);
+			if (weights.remaining() != indexLinearizer.getNumLinearIndexes())
+				throw new IOException("Truncated model file: " + file);
+			return new MaximumEntropyClassifier<I, String, String>(weights,
+					encoding, indexLinearizer, featureExtractor);
+		} finally {
+			// the mapping stays valid after the file is closed
+			randomAccessFile.close();
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out,
+			Collection<?> values) throws IOException {
+		out.writeInt(values.size());
+		for (Object value : values) {
+			byte[] bytes = value.toString().getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static Indexer<String> readStringIndexer(ByteBuffer buffer,
+			File file) throws IOException {
+		int size = buffer.getInt();
+		if (size < 0)
+			throw new IOException("Corrupt dictionaries in " + file);
+		Indexer<String> indexer = new Indexer<String>();
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < size; i++) {
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining())
+				throw new IOException("Corrupt dictionaries in " + file);
+			if (length > bytes.length)
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			buffer.get(bytes, 0, length);
+			indexer.add(new String(bytes, 0, length, UTF8));
+		}
+		return indexer;
+	}
+
+	private static int alignToDouble(int position) {
+		return (position + 7) & ~7;
+	}
+
 	public static void main(String[] args) {
 		// create datums
 		LabeledInstance<String[], String> datum1 = new LabeledInstance<String[], String>(
@@ -570,10 +1975,119 @@ public class MaximumEntropyClassifier<I, F, L> implements
 		};
 		MaximumEntropyClassifier.Factory<String[], String, String> maximumEntropyClassifierFactory = new MaximumEntropyClassifier.Factory<String[], String, String>(
 				1.0, 20, featureExtractor);
-		ProbabilisticClassifier<String[], String> maximumEntropyClassifier = maximumEntropyClassifierFactory
+		MaximumEntropyClassifier<String[], String, String> maximumEntropyClassifier = (MaximumEntropyClassifier<String[], String, String>) maximumEntropyClassifierFactory
 				.trainClassifier(trainingData);
 		System.out.println("Probabilities on test instance: "
 				+ maximumEntropyClassifier.getProbabilities(datum4.getInput()));
         System.out.println("Prediction: "+ maximumEntropyClassifier.getLabel(datum4.getInput()));    
+		ProbabilisticClassifier<String[], String> perceptronClassifier = new PerceptronFactory<String[], String, String>(
+				20, featureExtractor).trainClassifier(trainingData);
+		System.out.println("Best label: "
+				+ maximumEntropyClassifier.getBestLabels(datum4.getInput(), 1)
+				+ ", best two with probabilities: "
+				+ maximumEntropyClassifier.getBestLabelProbabilities(
+						datum4.getInput(), 2)
+				+ ", best zero: "
+				+ maximumEntropyClassifier.getBestLabels(datum4.getInput(), 0));
+		System.out.println("Averaged perceptron prediction: "
+				+ perceptronClassifier.getLabel(datum4.getInput()));
+		ProbabilisticClassifier<String[], String> adaGradClassifier = new AdaGradFactory<String[], String, String>(
+				1.0, 20, 2, 0.5, featureExtractor).trainClassifier(trainingData);
+		System.out.println("AdaGrad probabilities: "
+				+ adaGradClassifier.getProbabilities(datum4.getInput()));
+
+		// candidate labels: repeats count once, and unknown ones are ignored
+		// unless no known label is left
+		final Map<String, List<String>> candidates = new HashMap<String, List<String>>();
+		candidates.put("1", Arrays.asList("0", "1"));
+		candidates.put("2", Arrays.asList("0", "1", "1", "1", "unknown"));
+		candidates.put("20", Arrays.asList("unknown", "unknown"));
+		class CandidateFeatureExtractor implements
+				FeatureExtractor<String[], String>,
+				LabelCandidateExtractor<String[], String> {
+			public Counter<String> extractFeatures(String[] featureArray) {
+				return new Counter<String>(Arrays.asList(featureArray));
+			}
+
+			public Collection<String> getCandidateLabels(String[] featureArray) {
+				return candidates.get(featureArray[featureArray.length - 1]);
+			}
+		}
+		MaximumEntropyClassifier<String[], String, String> candidateClassifier = new MaximumEntropyClassifier<String[], String, String>(
+				maximumEntropyClassifier.weights,
+				maximumEntropyClassifier.encoding,
+				maximumEntropyClassifier.indexLinearizer,
+				new CandidateFeatureExtractor());
+		System.out.println("Candidates {0, 1}: "
+				+ candidateClassifier.getBestLabelProbabilities(new String[] {
+						"0", "1" }, 2)
+				+ ", candidates {0, 1, 1, 1, unknown}: "
+				+ candidateClassifier.getBestLabelProbabilities(new String[] {
+						"0", "2" }, 2) + " (expected: "
+				+ maximumEntropyClassifier.getBestLabelProbabilities(
+						new String[] { "0", "2" }, 2) + ")");
+		try {
+			candidateClassifier.getLabel(new String[] { "20" });
+			System.out.println("Only unknown candidates: no error (wrong)");
+		} catch (IllegalArgumentException e) {
+			System.out.println("Only unknown candidates: " + e.getMessage());
+		}
+
+		// check the sparse objective against the exhaustive reference version
+		Encoding<String, String> encoding = Factory.buildEmptyEncoding(0);
+		EncodedDatum[] data = Factory.encodeData(trainingData.iterator(),
+				encoding, featureExtractor).getData();
+		IndexLinearizer indexLinearizer = Factory
+				.buildIndexLinearizer(encoding);
+		ObjectiveFunction<String, String> objective = new ObjectiveFunction<String, String>(
+				encoding, data, indexLinearizer, 1.0);
+		Random random = new Random(0);
+		double[] x = new double[objective.dimension()];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = random.nextGaussian();
+		}
+		Pair<Double, double[]> sparse = objective.calculate(x);
+		Pair<Double, double[]> reference = objective.calculateReference(x);
+		double maxDifference = 0.0;
+		for (int i = 0; i < x.length; i++) {
+			maxDifference = Math.max(maxDifference, Math.abs(sparse
+					.getSecond()[i]
+					- reference.getSecond()[i]));
+		}
+		System.out.println("Objective: " + sparse.getFirst() + " (reference: "
+				+ reference.getFirst() + "), max derivative difference: "
+				+ maxDifference);
+		ObjectiveFunction<String, String> parallelObjective = new ObjectiveFunction<String, String>(
+				encoding, data, indexLinearizer, 1.0, 2);
+		Pair<Double, double[]> parallel = parallelObjective.calculate(x);
+		maxDifference = 0.0;
+		for (int i = 0; i < x.length; i++) {
+			maxDifference = Math.max(maxDifference, Math.abs(sparse
+					.getSecond()[i]
+					- parallel.getSecond()[i]));
+		}
+		System.out.println("Parallel objective: " + parallel.getFirst()
+				+ ", max derivative difference: " + maxDifference);
+		System.out.println("Value-only objective: "
+				+ objective.calculateValue(x) + " (parallel: "
+				+ parallelObjective.calculateValue(x) + ")");
+		parallelObjective.shutdown();
+
+		// a derivative asked for after the value reuses that evaluation, and
+		// an iterate updated in place is not mistaken for the cached one
+		double value = objective.valueAt(x);
+		double[] cachedDerivative = objective.derivativeAt(x);
+		maxDifference = 0.0;
+		for (int i = 0; i < x.length; i++) {
+			maxDifference = Math.max(maxDifference, Math.abs(sparse
+					.getSecond()[i]
+					- cachedDerivative[i]));
+		}
+		System.out.println("Cached value: " + value
+				+ ", max derivative difference: " + maxDifference);
+		x[0] += 1.0;
+		System.out.println("Value after an in-place update: "
+				+ objective.valueAt(x) + " (expected: "
+				+ objective.calculateValue(x) + ")");
     }
 }
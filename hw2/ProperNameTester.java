@@ -5,9 +5,18 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.util.AbstractList;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import nlp.classify.*;
 import nlp.util.CommandLineUtils;
@@ -28,7 +37,8 @@ import nlp.util.Counter;
 public class ProperNameTester {
 
 	public static class ProperNameFeatureExtractor implements
-			FeatureExtractor<String, String> {
+			FeatureExtractor<String, String>,
+			MaximumEntropyClassifier.HashedFeatureExtractor<String> {
 
 		/**
 		 * This method takes the list of characters representing the proper name
@@ -95,42 +105,387 @@ public class ProperNameTester {
             */
             return features;
 		}
+
+		// hash codes of the feature name prefixes used above
+		private static final int BIGRAM = "BIGRAM-".hashCode();
+		private static final int LENGTH_UNDER_10 = "LENGTH<10".hashCode();
+		private static final int WORD = "WORD=".hashCode();
+		private static final int LAST_THREE = "LASTTHREE-".hashCode();
+		private static final int FIRST_THREE = "FIRSTTHREE-".hashCode();
+		private static final int FIRST_ONE = "FIRSTONE-".hashCode();
+		private static final int LAST_ONE = "LASTONE-".hashCode();
+		private static final int LAST_FOUR = "LASTFOUR-".hashCode();
+		private static final int FIRST_FOUR = "FIRSTFOUR-".hashCode();
+
+		/**
+		 * Produces exactly the features of extractFeatures(), but as the
+		 * hashCode() of each feature String, computed by extending the hash of
+		 * the prefix with the characters of the name (String.hashCode() is
+		 * h = 31 * h + c over the characters). No Strings are created, and the
+		 * hashed maxent encoding maps these codes to the same slots as it
+		 * would the Strings themselves.
+		 */
+		public void extractFeatureHashCodes(String name,
+				MaximumEntropyClassifier.FeatureBuffer buffer) {
+			int length = name.length();
+			for (int i = 0; i < length - 1; i++) {
+				buffer.add(extend(BIGRAM, name, i, i + 2), 1.0);
+			}
+			if (length < 10) {
+				buffer.add(LENGTH_UNDER_10, 1.0);
+			}
+			buffer.add(extend(WORD, name, 0, length), 1.0);
+			if (length > 3) {
+				buffer.add(extend(LAST_THREE, name, length - 3, length), 1.0);
+				buffer.add(extend(FIRST_THREE, name, 0, 3), 1.0);
+			}
+			buffer.add(extend(FIRST_ONE, name, 0, 1), 1.0);
+			buffer.add(extend(LAST_ONE, name, length - 1, length), 1.0);
+			if (length > 4) {
+				buffer.add(extend(LAST_FOUR, name, length - 4, length), 1.0);
+				buffer.add(extend(FIRST_FOUR, name, 0, 4), 1.0);
+			}
+		}
+
+		private static int extend(int hashCode, String name, int start, int end) {
+			for (int i = start; i < end; i++) {
+				hashCode = 31 * hashCode + name.charAt(i);
+			}
+			return hashCode;
+		}
 	}
 
 	private static List<LabeledInstance<String, String>> loadData(
 			String fileName) throws IOException {
-		BufferedReader reader = new BufferedReader(new FileReader(fileName));
-		List<LabeledInstance<String, String>> labeledInstances = new ArrayList<LabeledInstance<String, String>>();
-		while (reader.ready()) {
-			String line = reader.readLine();
-			String[] parts = line.split("\t");
-			String label = parts[0];
-			String name = parts[1];
-			LabeledInstance<String, String> labeledInstance = new LabeledInstance<String, String>(
-					label, name);
-			labeledInstances.add(labeledInstance);
-		}
-		reader.close();
-		return labeledInstances;
+		return new MappedLabeledInstanceList(new File(fileName));
+	}
+
+	/**
+	 * A read-only list of the labeled names in a pnp file, which is memory
+	 * mapped rather than read. Loading scans the tab and newline bytes once
+	 * and keeps only a column store of label ids, name offsets and name
+	 * lengths; each name is decoded from UTF-8 only when its instance is
+	 * requested. Each line is a label, a tab, and a name which ends at the
+	 * next tab or line break (a trailing carriage return is dropped).
+	 */
+	public static class MappedLabeledInstanceList extends
+			AbstractList<LabeledInstance<String, String>> {
+		private static final int SEGMENT_BITS = 30;
+		private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+
+		private final MappedByteBuffer[] segments;
+		private final List<String> labels = new ArrayList<String>();
+		private final List<byte[]> labelBytes = new ArrayList<byte[]>();
+		private int size;
+		private int[] labelIds = new int[1024];
+		private long[] nameOffsets = new long[1024];
+		private int[] nameLengths = new int[1024];
+
+		public MappedLabeledInstanceList(File file) throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				long length = channel.size();
+				int numSegments = (int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS);
+				segments = new MappedByteBuffer[numSegments];
+				for (int s = 0; s < numSegments; s++) {
+					long position = (long) s << SEGMENT_BITS;
+					segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+							position, Math.min(length - position,
+									SEGMENT_MASK + 1));
+				}
+				index(length);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
+		private byte getByte(long position) {
+			return segments[(int) (position >>> SEGMENT_BITS)]
+					.get((int) (position & SEGMENT_MASK));
+		}
+
+		private void index(long length) throws IOException {
+			long position = 0;
+			while (position < length) {
+				long lineStart = position;
+				while (position < length && getByte(position) != '\t'
+						&& getByte(position) != '\n')
+					position++;
+				if (position >= length || getByte(position) == '\n') {
+					if (stripCarriageReturn(lineStart, position) > lineStart)
+						throw new IOException("Missing tab in line at byte "
+								+ lineStart);
+					// skip blank lines
+					position++;
+					continue;
+				}
+				int labelId = getLabelId(lineStart, (int) (position - lineStart));
+				long nameStart = ++position;
+				while (position < length && getByte(position) != '\t'
+						&& getByte(position) != '\n')
+					position++;
+				long nameEnd = stripCarriageReturn(nameStart, position);
+				// the rest of the line is ignored
+				while (position < length && getByte(position) != '\n')
+					position++;
+				position++;
+				add(labelId, nameStart, (int) (nameEnd - nameStart));
+			}
+		}
+
+		private long stripCarriageReturn(long start, long end) {
+			if (end > start && getByte(end - 1) == '\r')
+				return end - 1;
+			return end;
+		}
+
+		private int getLabelId(long start, int length) {
+			for (int labelId = 0; labelId < labelBytes.size(); labelId++) {
+				byte[] bytes = labelBytes.get(labelId);
+				if (bytes.length != length)
+					continue;
+				int i = 0;
+				while (i < length && bytes[i] == getByte(start + i))
+					i++;
+				if (i == length)
+					return labelId;
+			}
+			byte[] bytes = getBytes(start, length);
+			labelBytes.add(bytes);
+			labels.add(new String(bytes, UTF8));
+			return labels.size() - 1;
+		}
+
+		private byte[] getBytes(long start, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = getByte(start + i);
+			}
+			return bytes;
+		}
+
+		private void add(int labelId, long nameOffset, int nameLength) {
+			if (size == labelIds.length) {
+				int capacity = size * 2;
+				labelIds = Arrays.copyOf(labelIds, capacity);
+				nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+				nameLengths = Arrays.copyOf(nameLengths, capacity);
+			}
+			labelIds[size] = labelId;
+			nameOffsets[size] = nameOffset;
+			nameLengths[size] = nameLength;
+			size++;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public LabeledInstance<String, String> get(int index) {
+			return new LabeledInstance<String, String>(getLabel(index),
+					getName(index));
+		}
+
+		public int getNumLabels() {
+			return labels.size();
+		}
+
+		public int getLabelId(int index) {
+			checkIndex(index);
+			return labelIds[index];
+		}
+
+		public String getLabelForId(int labelId) {
+			return labels.get(labelId);
+		}
+
+		public String getLabel(int index) {
+			return labels.get(getLabelId(index));
+		}
+
+		public String getName(int index) {
+			checkIndex(index);
+			return new String(getBytes(nameOffsets[index], nameLengths[index]),
+					UTF8);
+		}
+
+		private void checkIndex(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index
+						+ ", size: " + size);
+		}
+	}
+
+	/**
+	 * Classifies a contiguous range of the test set, decoding and scoring
+	 * each instance exactly once. Each shard writes only its own slots of the
+	 * shared result arrays, and records how many bytes its thread allocated.
+	 * A maxent classifier is given the names BATCH_SIZE at a time through its
+	 * batch classify(), so only the latency of each whole batch is known and
+	 * it is recorded in batchLatencies; other classifiers are timed per
+	 * instance in latencies.
+	 */
+	private static class EvaluationShard implements Runnable {
+		static final int BATCH_SIZE = 64;
+
+		final ProbabilisticClassifier<String, String> classifier;
+		final List<LabeledInstance<String, String>> testData;
+		final int start;
+		final int end;
+		final String[] names;
+		final String[] goldLabels;
+		final String[] guessedLabels;
+		final double[] confidences;
+		final long[] latencies;
+		long[] batchLatencies = new long[0];
+		long allocatedBytes = -1;
+
+		public EvaluationShard(
+				ProbabilisticClassifier<String, String> classifier,
+				List<LabeledInstance<String, String>> testData, int start,
+				int end, String[] names, String[] goldLabels,
+				String[] guessedLabels, double[] confidences, long[] latencies) {
+			this.classifier = classifier;
+			this.testData = testData;
+			this.start = start;
+			this.end = end;
+			this.names = names;
+			this.goldLabels = goldLabels;
+			this.guessedLabels = guessedLabels;
+			this.confidences = confidences;
+			this.latencies = latencies;
+		}
+
+		public void run() {
+			long startBytes = getAllocatedBytes();
+			for (int i = start; i < end; i++) {
+				LabeledInstance<String, String> testDatum = testData.get(i);
+				names[i] = testDatum.getInput();
+				goldLabels[i] = testDatum.getLabel();
+			}
+			if (classifier instanceof MaximumEntropyClassifier) {
+				MaximumEntropyClassifier<String, ?, String> maximumEntropyClassifier = (MaximumEntropyClassifier<String, ?, String>) classifier;
+				int[] labelIndexes = new int[BATCH_SIZE];
+				double[][] probabilities = new double[BATCH_SIZE][maximumEntropyClassifier
+						.getNumLabels()];
+				List<String> batch = Arrays.asList(names).subList(start, end);
+				batchLatencies = new long[(end - start + BATCH_SIZE - 1)
+						/ BATCH_SIZE];
+				for (int batchStart = start; batchStart < end; batchStart += BATCH_SIZE) {
+					int batchEnd = Math.min(batchStart + BATCH_SIZE, end);
+					long startTime = System.nanoTime();
+					maximumEntropyClassifier.classify(batch.subList(batchStart
+							- start, batchEnd - start), labelIndexes,
+							probabilities);
+					batchLatencies[(batchStart - start) / BATCH_SIZE] = System
+							.nanoTime() - startTime;
+					for (int i = batchStart; i < batchEnd; i++) {
+						int labelIndex = labelIndexes[i - batchStart];
+						guessedLabels[i] = maximumEntropyClassifier
+								.getLabelForIndex(labelIndex);
+						confidences[i] = probabilities[i - batchStart][labelIndex];
+					}
+				}
+			} else {
+				for (int i = start; i < end; i++) {
+					long startTime = System.nanoTime();
+					Counter<String> probabilities = classifier
+							.getProbabilities(names[i]);
+					guessedLabels[i] = probabilities.argMax();
+					confidences[i] = probabilities.getCount(guessedLabels[i]);
+					latencies[i] = System.nanoTime() - startTime;
+				}
+			}
+			long endBytes = getAllocatedBytes();
+			if (startBytes >= 0 && endBytes >= 0)
+				allocatedBytes = endBytes - startBytes;
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated so far by the current thread, or -1 if the
+	 * JVM cannot tell.
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory
+				.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationBean.isThreadAllocatedMemorySupported()
+				|| !allocationBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+	}
+
+	private static long percentile(long[] sortedValues, double fraction) {
+		if (sortedValues.length == 0)
+			return 0;
+		int index = (int) Math.ceil(fraction * sortedValues.length) - 1;
+		return sortedValues[Math.max(0, Math.min(index,
+				sortedValues.length - 1))];
 	}
 
 	private static void testClassifier(
 			ProbabilisticClassifier<String, String> classifier,
-			List<LabeledInstance<String, String>> testData, boolean verbose) {
+			List<LabeledInstance<String, String>> testData, boolean verbose,
+			int numThreads) {
+		int numTest = testData.size();
+		String[] names = new String[numTest];
+		String[] goldLabels = new String[numTest];
+		String[] guessedLabels = new String[numTest];
+		double[] confidences = new double[numTest];
+		long[] latencies = new long[numTest];
+
+		// split the test set into one contiguous shard per worker
+		int numShards = Math.max(1, Math.min(numThreads, numTest));
+		EvaluationShard[] shards = new EvaluationShard[numShards];
+		for (int s = 0; s < numShards; s++) {
+			shards[s] = new EvaluationShard(classifier, testData,
+					(int) ((long) numTest * s / numShards),
+					(int) ((long) numTest * (s + 1) / numShards), names,
+					goldLabels, guessedLabels, confidences, latencies);
+		}
+		long startTime = System.nanoTime();
+		if (numShards == 1) {
+			shards[0].run();
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(numShards);
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>>(numShards);
+				for (EvaluationShard shard : shards) {
+					futures.add(executor.submit(shard));
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				executor.shutdown();
+			}
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+
 		double numCorrect = 0.0;
 		double numTotal = 0.0;
-		for (LabeledInstance<String, String> testDatum : testData) {
-			String name = testDatum.getInput();
-			String label = classifier.getLabel(name);
-			double confidence = classifier.getProbabilities(name).getCount(
-					label);
-			if (label.equals(testDatum.getLabel())) {
+		for (int i = 0; i < numTest; i++) {
+			String name = names[i];
+			String label = guessedLabels[i];
+			double confidence = confidences[i];
+			if (label.equals(goldLabels[i])) {
 				numCorrect += 1.0;
 			} else {
 				if (verbose) {
 					// display an error
 					System.err.println("Error: " + name + " guess=" + label
-							+ " gold=" + testDatum.getLabel() + " confidence="
+							+ " gold=" + goldLabels[i] + " confidence="
 							+ confidence);
 				}
 			}
@@ -138,6 +493,48 @@ public class ProperNameTester {
 		}
 		double accuracy = numCorrect / numTotal;
 		System.out.println("Accuracy: " + accuracy);
+
+		// throughput, latency and allocation report
+		double elapsedSeconds = elapsedTime / 1e9;
+		System.out.println("Threads: " + numShards + ", instances/sec: "
+				+ (elapsedSeconds > 0 ? numTest / elapsedSeconds : 0.0));
+		// in nanoseconds, since a name takes well under a microsecond
+		if (classifier instanceof MaximumEntropyClassifier) {
+			int numBatches = 0;
+			for (EvaluationShard shard : shards) {
+				numBatches += shard.batchLatencies.length;
+			}
+			long[] batchLatencies = new long[numBatches];
+			int numCopied = 0;
+			for (EvaluationShard shard : shards) {
+				System.arraycopy(shard.batchLatencies, 0, batchLatencies,
+						numCopied, shard.batchLatencies.length);
+				numCopied += shard.batchLatencies.length;
+			}
+			Arrays.sort(batchLatencies);
+			System.out.println("Batch latency (up to "
+					+ EvaluationShard.BATCH_SIZE + " names) p50: "
+					+ percentile(batchLatencies, 0.50) + " ns, p99: "
+					+ percentile(batchLatencies, 0.99) + " ns");
+		} else {
+			Arrays.sort(latencies);
+			System.out.println("Latency p50: " + percentile(latencies, 0.50)
+					+ " ns, p99: " + percentile(latencies, 0.99) + " ns");
+		}
+		long allocatedBytes = 0;
+		for (EvaluationShard shard : shards) {
+			if (shard.allocatedBytes < 0) {
+				allocatedBytes = -1;
+				break;
+			}
+			allocatedBytes += shard.allocatedBytes;
+		}
+		if (allocatedBytes >= 0 && numTest > 0) {
+			System.out.println("Allocated: " + (allocatedBytes / numTest)
+					+ " bytes/instance, "
+					+ (elapsedSeconds > 0 ? allocatedBytes / elapsedSeconds
+							/ (1 << 20) : 0.0) + " MB/sec");
+		}
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -150,6 +547,10 @@ public class ProperNameTester {
 		String model = "baseline";
 		boolean verbose = false;
 		boolean useValidation = true;
+		int hashBits = 0;
+		int numThreads = 1;
+		String loadModelPath = null;
+		String saveModelPath = null;
 
 		// Update defaults using command line specifications
 
@@ -179,6 +580,30 @@ public class ProperNameTester {
 			verbose = true;
 		}
 
+		// Hash maxent features into 2^hashBits slots instead of indexing them.
+		// Only then are the features computed as hash codes without building
+		// any Strings; the default indexed encoding still builds them.
+		if (argMap.containsKey("-hashBits")) {
+			hashBits = Integer.parseInt(argMap.get("-hashBits"));
+			System.out.println("Hashing features into 2^" + hashBits
+					+ " slots");
+		}
+
+		// Read a saved maxent model instead of training one, or save the
+		// trained one
+		if (argMap.containsKey("-loadModel")) {
+			loadModelPath = argMap.get("-loadModel");
+		}
+		if (argMap.containsKey("-saveModel")) {
+			saveModelPath = argMap.get("-saveModel");
+		}
+
+		// Number of worker threads used to classify the test set
+		if (argMap.containsKey("-threads")) {
+			numThreads = Integer.parseInt(argMap.get("-threads"));
+			System.out.println("Testing with " + numThreads + " threads");
+		}
+
 		// Load training, validation, and test data
 		List<LabeledInstance<String, String>> trainingData = loadData(basePath
 				+ "/pnp-train.txt");
@@ -189,26 +614,48 @@ public class ProperNameTester {
 
 		// Learn a classifier
 		ProbabilisticClassifier<String, String> classifier = null;
-		if (model.equalsIgnoreCase("baseline")) {
+		if (loadModelPath != null) {
+			System.out.println("Loading model from " + loadModelPath);
+			classifier = MaximumEntropyClassifier.load(new File(
+					loadModelPath), new ProperNameFeatureExtractor());
+		} else if (model.equalsIgnoreCase("baseline")) {
 			classifier = new MostFrequentLabelClassifier.Factory<String, String>()
 					.trainClassifier(trainingData);
 		} else if (model.equalsIgnoreCase("n-gram")) {
 			// TODO: construct your n-gram model here
 		} else if (model.equalsIgnoreCase("maxent")) {
 			// TODO: construct your maxent model here
-			ProbabilisticClassifierFactory<String, String> factory = new MaximumEntropyClassifier.Factory<String, String, String>(
+			MaximumEntropyClassifier.Factory<String, String, String> factory = new MaximumEntropyClassifier.Factory<String, String, String>(
 					1, 150, new ProperNameFeatureExtractor());
+			factory.setHashBits(hashBits);
 //          long start = System.nanoTime();
 			classifier = factory.trainClassifier(trainingData);
 //            long end = System.nanoTime();
 //            long used = end - start;
 //            System.out.println("Time used one iteration: " + TimeUnit.NANOSECONDS.toMillis(used) + " ms");
+		} else if (model.equalsIgnoreCase("adagrad")) {
+			MaximumEntropyClassifier.AdaGradFactory<String, String, String> factory = new MaximumEntropyClassifier.AdaGradFactory<String, String, String>(
+					1, 5, 32, 0.5, new ProperNameFeatureExtractor());
+			factory.setHashBits(hashBits);
+			classifier = factory.trainClassifier(trainingData);
+		} else if (model.equalsIgnoreCase("perceptron")) {
+			classifier = new MaximumEntropyClassifier.PerceptronFactory<String, String, String>(
+					20, new ProperNameFeatureExtractor())
+					.trainClassifier(trainingData);
 		} else {
 			throw new RuntimeException("Unknown model descriptor: " + model);
 		}
 
+		if (saveModelPath != null) {
+			if (!(classifier instanceof MaximumEntropyClassifier))
+				throw new RuntimeException("Only maxent models can be saved");
+			((MaximumEntropyClassifier<String, ?, String>) classifier)
+					.save(new File(saveModelPath));
+			System.out.println("Saved model to " + saveModelPath);
+		}
+
 		// Test classifier
 		testClassifier(classifier, (useValidation ? validationData : testData),
-				verbose);
+				verbose, numThreads);
 	}
 }
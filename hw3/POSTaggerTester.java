@@ -1,17 +1,35 @@
 package nlp.assignments;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import nlp.math.SloppyMath;
 
 import nlp.util.*;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Harness for POS Tagger project.
@@ -22,6 +40,7 @@ public class POSTaggerTester {
 	static final String STOP_WORD = "</S>";
 	static final String START_TAG = "<S>";
 	static final String STOP_TAG = "</S>";
+	static final Charset UTF8 = Charset.forName("UTF-8");
 
 	/**
 	 * Tagged sentences are a bundling of a list of words and a list of their
@@ -93,19 +112,11 @@ public class POSTaggerTester {
 	 * arbitrary state, for example [DT, NN, 2], use the static factory method
 	 * State.buildState("DT", "NN", 2). There isnt' a single final state, since
 	 * sentences lengths vary, so State.getEndState(i) takes a parameter for the
-	 * length of the sentence.
+	 * length of the sentence. States are immutable values compared with
+	 * equals(), so they can be built from any thread.
 	 */
 	static class State {
 
-		private static transient Interner<State> stateInterner = new Interner<State>(
-				new Interner.CanonicalFactory<State>() {
-					public State build(State state) {
-						return new State(state);
-					}
-				});
-
-		private static transient State tempState = new State();
-
 		public static State getStartState() {
 			return buildState(START_TAG, START_TAG, 0);
 		}
@@ -116,8 +127,7 @@ public class POSTaggerTester {
 
 		public static State buildState(String previousPreviousTag,
 				String previousTag, int position) {
-			tempState.setState(previousPreviousTag, previousTag, position);
-			return stateInterner.intern(tempState);
+			return new State(previousPreviousTag, previousTag, position);
 		}
 
 		public static List<String> toTagList(List<State> states) {
@@ -190,24 +200,16 @@ public class POSTaggerTester {
 					+ ", " + getPosition() + "]";
 		}
 
-		int position;
-		String previousTag;
-		String previousPreviousTag;
+		final int position;
+		final String previousTag;
+		final String previousPreviousTag;
 
-		private void setState(String previousPreviousTag, String previousTag,
+		private State(String previousPreviousTag, String previousTag,
 				int position) {
 			this.previousPreviousTag = previousPreviousTag;
 			this.previousTag = previousTag;
 			this.position = position;
 		}
-
-		private State() {
-		}
-
-		private State(State state) {
-			setState(state.getPreviousPreviousTag(), state.getPreviousTag(),
-					state.getPosition());
-		}
 	}
 
 	/**
@@ -302,107 +304,918 @@ public class POSTaggerTester {
 		}
 	}
 
-    static class ViterbiDecoder<S> implements TrellisDecoder<S> {
-        
-        public  List<S> getBestPath(Trellis<S> trellis){
-            
-            Map<S, S> BP = new HashMap<S, S>();
-            Map<S, Double> VT = new HashMap<S, Double>();
-
-            List<S> states = new ArrayList<S>();
-            S currentState = trellis.getEndState();
-            //states.add(currentState);
-
-            double MaxScore = Viterbi(currentState, trellis, BP ,VT);
-            
-            states.add(currentState);
-            S cState = currentState;
-            while (!currentState.equals(trellis.getStartState())){
-                cState = BP.get(currentState);
-                states.add(cState);
-                currentState = cState;
-            }
-            
-            List<S> states_reverse = new ArrayList<S>();
-            for (int i=states.size()-1; i>-1; i=i-1){
-                states_reverse.add(states.get(i));
-            }
-            System.out.println(states_reverse);
-            String listString = "";
-            for (S state : states_reverse){
-                listString += state + "\t";
-            }
-            if (listString.contains("AFX")){
-                System.out.println("AFXAFXAFX****change to Greedy");
-                List<S> states2 = new ArrayList<S>(); 
-                currentState = trellis.getStartState();
-                states2.add(currentState);
-                while (!currentState.equals(trellis.getEndState())) {
-                    Counter<S> transitions = trellis
-                        .getForwardTransitions(currentState);
-                    S nextState = transitions.argMax(); 
-                    states2.add(nextState);
-                    currentState = nextState;
-                }
-                return states2;
-            }
-            else{
-                return states_reverse;
-            }
-        } 
+	/**
+	 * Viterbi over a Trellis of States. The trellis is copied position by
+	 * position into an ArrayTagLattice over tag ids, reading the transitions
+	 * of each state once, and decoded by a LatticeViterbiDecoder, so scores
+	 * and backpointers live in flat arrays indexed by packed tag pairs. If the
+	 * best path uses the tag "AFX", the greedy path is returned instead.
+	 */
+	static class ViterbiDecoder implements TrellisDecoder<State> {
+
+		public List<State> getBestPath(Trellis<State> trellis) {
+			Indexer<String> tagIndexer = buildTagIndexer(trellis);
+			ArrayTagLattice lattice = buildTagLattice(trellis, tagIndexer);
+			int[] tags = new LatticeViterbiDecoder("AFX").getBestTags(lattice);
+			List<State> bestPath = new ArrayList<State>(tags.length + 1);
+			State state = trellis.getStartState();
+			bestPath.add(state);
+			for (int position = 0; position < tags.length; position++) {
+				state = state.getNextState(tagIndexer.get(tags[position]));
+				bestPath.add(state);
+			}
+			return bestPath;
+		}
 
+		/**
+		 * Indexes the tags of every state with transitions, after the
+		 * boundary tags, as the TagLattice requires.
+		 */
+		private static Indexer<String> buildTagIndexer(Trellis<State> trellis) {
+			Indexer<String> tagIndexer = new Indexer<String>();
+			tagIndexer.add(START_TAG);
+			tagIndexer.add(STOP_TAG);
+			for (State state : trellis.forwardTransitions.keySet()) {
+				tagIndexer.add(state.getPreviousPreviousTag());
+				tagIndexer.add(state.getPreviousTag());
+			}
+			return tagIndexer;
+		}
 
-        public double Viterbi(S currentState, Trellis<S> trellis, Map<S, S> BP, Map<S, Double> VT){
-            double maxScore = Double.NEGATIVE_INFINITY;
-            // maxU is for record in loops
-            S maxU = currentState;
-            // Initialize at the Start state
-            if (currentState.equals(trellis.getStartState())){
-                maxScore = 0.0;
-                maxU = trellis.getStartState();
-            }
-            // If not the Start state, then run the loop for all the posible previous states of the current state
-            else{
-                for (S U: trellis.getBackwardTransitions(currentState).keySet()){
-                    double score = 0.0;
-                    // Use the value from previous calculation, save time
-                    if (VT.keySet().contains(U)){
-                        score = VT.get(U)
-                            + trellis.getBackwardTransitions(currentState).getCount(U);
-                    }
-                    // If no record, run the dynamic program
-                    else{
-                        score = Viterbi(U, trellis, BP, VT) 
-                                + trellis.getBackwardTransitions(currentState).getCount(U);
-                    }
-                    // Record the max score and the best previous state for the current state
-                    if (score > maxScore || maxScore == Double.NEGATIVE_INFINITY){
-                        maxScore = score;
-                        maxU = U;
-                    }
-                }
-            }
-            // Set the backpointer and the record the max score
-            BP.put(currentState, maxU);
-            VT.put(currentState, maxScore);
-            
-            return maxScore;
-        }
-    }
+		/**
+		 * Copies the states reachable from the start state into a lattice,
+		 * in position order and, within a position, in packed state order.
+		 */
+		private static ArrayTagLattice buildTagLattice(Trellis<State> trellis,
+				Indexer<String> tagIndexer) {
+			int numTags = tagIndexer.size();
+			ArrayTagLattice lattice = new ArrayTagLattice(tagIndexer, trellis
+					.getEndState().getPosition());
+			boolean[] reached = new boolean[numTags * numTags];
+			boolean[] nextReached = new boolean[numTags * numTags];
+			reached[lattice.getStartState()] = true;
+			for (int position = 0; position < lattice.getNumPositions(); position++) {
+				for (int state = 0; state < reached.length; state++) {
+					if (!reached[state])
+						continue;
+					reached[state] = false;
+					lattice.addSourceState(position, state);
+					Counter<State> transitions = trellis
+							.getForwardTransitions(State.buildState(tagIndexer
+									.get(state / numTags), tagIndexer.get(state
+									% numTags), position));
+					for (State nextState : transitions.keySet()) {
+						int tag = tagIndexer.indexOf(nextState.getPreviousTag());
+						lattice.addTransition(tag, transitions
+								.getCount(nextState));
+						nextReached[lattice.getNextState(state, tag)] = true;
+					}
+				}
+				boolean[] swap = reached;
+				reached = nextReached;
+				nextReached = swap;
+			}
+			return lattice;
+		}
+	}
 //
 
+	/**
+	 * A TagLattice is the trellis of a sentence over tag ids instead of State
+	 * objects. Tags are indexed by the tagger, with START_TAG at 0 and
+	 * STOP_TAG at 1, and a state (previousPreviousTag, previousTag) is packed
+	 * into the int previousPreviousTag * numTags + previousTag. A sentence of
+	 * n words has n + 2 scored positions (the last two take STOP_TAG), so a
+	 * path starts in the start state before position 0 and ends in the stop
+	 * state after position n + 1.
+	 * <p/>
+	 * Decoders walk the lattice forward and ask for the transitions of each
+	 * state they reach, so a lattice may either store all transitions up front
+	 * or score them when asked.
+	 */
+	static abstract class TagLattice {
+		Indexer<String> tagIndexer;
+		int numTags;
+		int numPositions;
+
+		public Indexer<String> getTagIndexer() {
+			return tagIndexer;
+		}
+
+		public int getNumTags() {
+			return numTags;
+		}
+
+		public int getNumPositions() {
+			return numPositions;
+		}
+
+		public int getStartState() {
+			return buildState(0, 0);
+		}
+
+		public int getStopState() {
+			return buildState(1, 1);
+		}
+
+		public int buildState(int previousPreviousTag, int previousTag) {
+			return previousPreviousTag * numTags + previousTag;
+		}
+
+		public int getNextState(int state, int tag) {
+			return (state % numTags) * numTags + tag;
+		}
+
+		/**
+		 * Writes the tags which may follow the state at the position, and
+		 * their log scores, into the arrays and returns how many there are.
+		 * The arrays must hold numTags entries.
+		 */
+		public abstract int getTransitions(int position, int state,
+				int[] tags, double[] scores);
+
+		public TagLattice(Indexer<String> tagIndexer, int numPositions) {
+			this.tagIndexer = tagIndexer;
+			this.numTags = tagIndexer.size();
+			this.numPositions = numPositions;
+		}
+	}
+
+	/**
+	 * A TagLattice with every transition computed up front. For each position
+	 * it keeps the sorted states reached there and, for each of them, the tags
+	 * that may follow with their log scores, all in flat arrays.
+	 */
+	static class ArrayTagLattice extends TagLattice {
+		int[] positionStarts;
+		int lastPosition;
+		int numSourceStates;
+		int[] sourceStates;
+		int[] edgeStarts;
+		int numEdges;
+		int[] edgeTags;
+		double[] edgeScores;
+
+		public int getTransitions(int position, int state, int[] tags,
+				double[] scores) {
+			int sourceIndex = Arrays.binarySearch(sourceStates,
+					getPositionStart(position), getPositionStart(position + 1),
+					state);
+			if (sourceIndex < 0)
+				return 0;
+			int numTransitions = 0;
+			for (int e = edgeStarts[sourceIndex]; e < edgeStarts[sourceIndex + 1]; e++) {
+				tags[numTransitions] = edgeTags[e];
+				scores[numTransitions] = edgeScores[e];
+				numTransitions++;
+			}
+			return numTransitions;
+		}
+
+		private int getPositionStart(int position) {
+			return (position <= lastPosition ? positionStarts[position]
+					: numSourceStates);
+		}
+
+		/**
+		 * Begins the transitions leaving a state at a position; states must be
+		 * added in position order and, within a position, in increasing order.
+		 */
+		public void addSourceState(int position, int state) {
+			while (lastPosition < position) {
+				positionStarts[++lastPosition] = numSourceStates;
+			}
+			if (numSourceStates == sourceStates.length) {
+				sourceStates = Arrays.copyOf(sourceStates, 2 * numSourceStates);
+				edgeStarts = Arrays.copyOf(edgeStarts, 2 * numSourceStates + 1);
+			}
+			sourceStates[numSourceStates++] = state;
+			edgeStarts[numSourceStates] = numEdges;
+		}
+
+		public void addTransition(int tag, double score) {
+			if (numEdges == edgeTags.length) {
+				edgeTags = Arrays.copyOf(edgeTags, 2 * numEdges);
+				edgeScores = Arrays.copyOf(edgeScores, 2 * numEdges);
+			}
+			edgeTags[numEdges] = tag;
+			edgeScores[numEdges] = score;
+			numEdges++;
+			edgeStarts[numSourceStates] = numEdges;
+		}
+
+		public ArrayTagLattice(Indexer<String> tagIndexer, int numPositions) {
+			super(tagIndexer, numPositions);
+			this.positionStarts = new int[numPositions + 1];
+			this.sourceStates = new int[16];
+			this.edgeStarts = new int[17];
+			this.edgeTags = new int[64];
+			this.edgeScores = new double[64];
+		}
+	}
+
+	/**
+	 * A TagLattice which stores nothing: each request for transitions asks the
+	 * LocalTrigramScorer for the context right away, so the decoder consumes
+	 * the scores as they are produced. A DenseLocalTrigramScorer is asked
+	 * over ids, with the words encoded once per sentence.
+	 */
+	static class StreamingTagLattice extends TagLattice {
+		List<String> sentence;
+		LocalTrigramScorer localTrigramScorer;
+		DenseLocalTrigramScorer denseLocalTrigramScorer;
+		int[] wordCodes;
+		TagDictionary tagDictionary;
+		int[] dictionaryWords;
+
+		public int getTransitions(int position, int state, int[] tags,
+				double[] scores) {
+			int numTransitions = getScorerTransitions(position, state, tags,
+					scores);
+			if (tagDictionary != null)
+				numTransitions = tagDictionary.restrictTransitions(
+						dictionaryWords[position], numTransitions, tags, scores);
+			return numTransitions;
+		}
+
+		private int getScorerTransitions(int position, int state, int[] tags,
+				double[] scores) {
+			if (denseLocalTrigramScorer != null)
+				return denseLocalTrigramScorer.getLogScores(wordCodes,
+						position, state / numTags, state % numTags, tags,
+						scores);
+			LocalTrigramContext localTrigramContext = new LocalTrigramContext(
+					sentence, position, tagIndexer.get(state / numTags),
+					tagIndexer.get(state % numTags));
+			Counter<String> tagScores = localTrigramScorer
+					.getLogScoreCounter(localTrigramContext);
+			int numTransitions = 0;
+			for (String tag : tagScores.keySet()) {
+				int tagIndex = tagIndexer.indexOf(tag);
+				if (tagIndex < 0)
+					throw new RuntimeException("Unknown tag: " + tag);
+				tags[numTransitions] = tagIndex;
+				scores[numTransitions] = tagScores.getCount(tag);
+				numTransitions++;
+			}
+			return numTransitions;
+		}
+
+		public StreamingTagLattice(Indexer<String> tagIndexer,
+				List<String> sentence, LocalTrigramScorer localTrigramScorer) {
+			this(tagIndexer, sentence, localTrigramScorer, null);
+		}
+
+		/**
+		 * If a tagDictionary is given, only the tags it allows for each word
+		 * are candidates.
+		 */
+		public StreamingTagLattice(Indexer<String> tagIndexer,
+				List<String> sentence, LocalTrigramScorer localTrigramScorer,
+				TagDictionary tagDictionary) {
+			super(tagIndexer, sentence.size() + 2);
+			this.sentence = sentence;
+			this.localTrigramScorer = localTrigramScorer;
+			if (localTrigramScorer instanceof DenseLocalTrigramScorer) {
+				denseLocalTrigramScorer = (DenseLocalTrigramScorer) localTrigramScorer;
+				wordCodes = denseLocalTrigramScorer.encodeWords(sentence);
+			}
+			this.tagDictionary = tagDictionary;
+			if (tagDictionary != null)
+				dictionaryWords = tagDictionary.encodeWords(sentence);
+		}
+	}
+
+	/**
+	 * The tags seen with each frequent training word, as sorted tag ids in
+	 * one flat table: the tags of word w are wordTags[wordStarts[w]] to
+	 * wordTags[wordStarts[w + 1] - 1]. Words seen at most rareWordCount
+	 * times, and unknown words, may take any tag. The tables wrap heap
+	 * arrays when built from training data and are views of the model file
+	 * when loaded.
+	 */
+	static class TagDictionary {
+		Indexer<String> wordIndexer;
+		IntBuffer wordStarts;
+		IntBuffer wordTags;
+
+		public int getNumWords() {
+			return wordIndexer.size();
+		}
+
+		/**
+		 * Looks up the words at positions 0 to sentence.size() + 1 (the last
+		 * two being STOP_WORD); -1 for words which may take any tag.
+		 */
+		public int[] encodeWords(List<String> sentence) {
+			int[] words = new int[sentence.size() + 2];
+			int position = 0;
+			for (String word : sentence) {
+				words[position++] = wordIndexer.indexOf(word);
+			}
+			words[position++] = -1;
+			words[position++] = -1;
+			return words;
+		}
+
+		public boolean allowsTag(int word, int tag) {
+			if (word < 0)
+				return true;
+			return binarySearch(wordTags, wordStarts.get(word), wordStarts
+					.get(word + 1), tag) >= 0;
+		}
+
+		/**
+		 * Drops the transitions to tags the word was not seen with, keeping
+		 * the rest in order, and returns how many are left. If none would be
+		 * left, all are kept, so that every state still has a way on.
+		 */
+		public int restrictTransitions(int word, int numTransitions,
+				int[] tags, double[] scores) {
+			if (word < 0)
+				return numTransitions;
+			int numAllowed = 0;
+			for (int t = 0; t < numTransitions; t++) {
+				if (allowsTag(word, tags[t]))
+					numAllowed++;
+			}
+			if (numAllowed == 0 || numAllowed == numTransitions)
+				return numTransitions;
+			numAllowed = 0;
+			for (int t = 0; t < numTransitions; t++) {
+				if (!allowsTag(word, tags[t]))
+					continue;
+				tags[numAllowed] = tags[t];
+				scores[numAllowed] = scores[t];
+				numAllowed++;
+			}
+			return numAllowed;
+		}
+
+		public TagDictionary(Indexer<String> wordIndexer,
+				IntBuffer wordStarts, IntBuffer wordTags) {
+			this.wordIndexer = wordIndexer;
+			this.wordStarts = wordStarts;
+			this.wordTags = wordTags;
+		}
+
+		public TagDictionary(List<TaggedSentence> taggedSentences,
+				Indexer<String> tagIndexer, int rareWordCount) {
+			int numTags = tagIndexer.size();
+			Indexer<String> allWords = new Indexer<String>();
+			int[] wordCounts = new int[1024];
+			boolean[] seenTags = new boolean[1024 * numTags];
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				Iterator<String> tagIterator = taggedSentence.getTags()
+						.iterator();
+				for (String word : taggedSentence.getWords()) {
+					allWords.add(word);
+					int wordIndex = allWords.indexOf(word);
+					if (wordIndex == wordCounts.length) {
+						wordCounts = Arrays.copyOf(wordCounts, 2 * wordIndex);
+						seenTags = Arrays.copyOf(seenTags, 2 * wordIndex
+								* numTags);
+					}
+					wordCounts[wordIndex]++;
+					seenTags[wordIndex * numTags
+							+ tagIndexer.indexOf(tagIterator.next())] = true;
+				}
+			}
+			wordIndexer = new Indexer<String>();
+			int numFrequentWords = 0;
+			int numEntries = 0;
+			for (int wordIndex = 0; wordIndex < allWords.size(); wordIndex++) {
+				if (wordCounts[wordIndex] <= rareWordCount)
+					continue;
+				numFrequentWords++;
+				for (int tag = 0; tag < numTags; tag++) {
+					if (seenTags[wordIndex * numTags + tag])
+						numEntries++;
+				}
+			}
+			int[] starts = new int[numFrequentWords + 1];
+			int[] tags = new int[numEntries];
+			numEntries = 0;
+			for (int wordIndex = 0; wordIndex < allWords.size(); wordIndex++) {
+				if (wordCounts[wordIndex] <= rareWordCount)
+					continue;
+				wordIndexer.add(allWords.get(wordIndex));
+				for (int tag = 0; tag < numTags; tag++) {
+					if (seenTags[wordIndex * numTags + tag])
+						tags[numEntries++] = tag;
+				}
+				starts[wordIndexer.size()] = numEntries;
+			}
+			wordStarts = IntBuffer.wrap(starts);
+			wordTags = IntBuffer.wrap(tags);
+		}
+	}
+
+	/**
+	 * A LatticeDecoder takes a TagLattice and returns the tag ids of a path
+	 * through it, one for each position, which ends in the stop state.
+	 */
+	static interface LatticeDecoder {
+		int[] getBestTags(TagLattice lattice);
+	}
+
+	/**
+	 * Viterbi over a TagLattice, position by position, keeping scores and
+	 * backpointers for the packed states in flat arrays. A state counts as
+	 * reached even if only through edges of score Double.NEGATIVE_INFINITY,
+	 * and such a state takes any later predecessor.
+	 * <p/>
+	 * If a fallback tag is given and the best path uses it, the greedy path
+	 * is returned instead; ViterbiDecoder uses "AFX".
+	 */
+	static class LatticeViterbiDecoder implements LatticeDecoder {
+		String fallbackTag;
+
+		public int[] getBestTags(TagLattice lattice) {
+			int numTags = lattice.getNumTags();
+			int numStates = numTags * numTags;
+			int numPositions = lattice.getNumPositions();
+			double[] scores = new double[numStates];
+			double[] nextScores = new double[numStates];
+			boolean[] nextReached = new boolean[numStates];
+			int[] states = new int[numStates];
+			int[] nextStates = new int[numStates];
+			int[] backpointers = new int[numPositions * numStates];
+			int[] transitionTags = new int[numTags];
+			double[] transitionScores = new double[numTags];
+
+			int numCurrentStates = 1;
+			states[0] = lattice.getStartState();
+			scores[states[0]] = 0.0;
+			for (int position = 0; position < numPositions; position++) {
+				int numNextStates = 0;
+				int backpointerOffset = position * numStates;
+				for (int i = 0; i < numCurrentStates; i++) {
+					int state = states[i];
+					double stateScore = scores[state];
+					int numTransitions = lattice.getTransitions(position,
+							state, transitionTags, transitionScores);
+					for (int t = 0; t < numTransitions; t++) {
+						int nextState = lattice.getNextState(state,
+								transitionTags[t]);
+						double score = stateScore + transitionScores[t];
+						if (!nextReached[nextState]) {
+							nextReached[nextState] = true;
+							nextStates[numNextStates++] = nextState;
+						} else if (!(score > nextScores[nextState] || nextScores[nextState] == Double.NEGATIVE_INFINITY)) {
+							continue;
+						}
+						nextScores[nextState] = score;
+						backpointers[backpointerOffset + nextState] = state;
+					}
+				}
+				// the next states become the current ones
+				for (int i = 0; i < numNextStates; i++) {
+					nextReached[nextStates[i]] = false;
+				}
+				double[] swapScores = scores;
+				scores = nextScores;
+				nextScores = swapScores;
+				int[] swapStates = states;
+				states = nextStates;
+				nextStates = swapStates;
+				numCurrentStates = numNextStates;
+			}
+
+			int state = lattice.getStopState();
+			boolean stopReached = false;
+			for (int i = 0; i < numCurrentStates; i++) {
+				if (states[i] == state)
+					stopReached = true;
+			}
+			if (!stopReached)
+				throw new RuntimeException("No path reaches the stop state");
+			int[] tags = new int[numPositions];
+			for (int position = numPositions - 1; position >= 0; position--) {
+				tags[position] = state % numTags;
+				state = backpointers[position * numStates + state];
+			}
+
+			if (fallbackTag != null) {
+				int fallbackTagIndex = lattice.getTagIndexer().indexOf(
+						fallbackTag);
+				for (int tag : tags) {
+					if (tag == fallbackTagIndex)
+						return getGreedyTags(lattice);
+				}
+			}
+			return tags;
+		}
+
+		/**
+		 * Follows the best scoring transition from the start state at each
+		 * position.
+		 */
+		static int[] getGreedyTags(TagLattice lattice) {
+			int numTags = lattice.getNumTags();
+			int[] transitionTags = new int[numTags];
+			double[] transitionScores = new double[numTags];
+			int[] tags = new int[lattice.getNumPositions()];
+			int state = lattice.getStartState();
+			for (int position = 0; position < tags.length; position++) {
+				int numTransitions = lattice.getTransitions(position, state,
+						transitionTags, transitionScores);
+				int best = 0;
+				for (int t = 1; t < numTransitions; t++) {
+					if (transitionScores[t] > transitionScores[best])
+						best = t;
+				}
+				tags[position] = transitionTags[best];
+				state = lattice.getNextState(state, tags[position]);
+			}
+			return tags;
+		}
+
+		public LatticeViterbiDecoder() {
+		}
+
+		public LatticeViterbiDecoder(String fallbackTag) {
+			this.fallbackTag = fallbackTag;
+		}
+	}
+
+	/**
+	 * The posterior probability of each tag at each position of a TagLattice,
+	 * taking the transition scores as unnormalized log probabilities. The
+	 * forward and backward passes keep log alpha and log beta for the packed
+	 * states in flat arrays, so one pass costs O(n * numTags^3).
+	 */
+	static class TagPosteriors {
+		int numTags;
+		int numPositions;
+		double logPartition;
+		double[] posteriors;
+
+		public int getNumPositions() {
+			return numPositions;
+		}
+
+		/**
+		 * The log of the total score of all paths through the lattice;
+		 * Double.NEGATIVE_INFINITY if every path scores -Infinity, in which
+		 * case all posteriors are zero.
+		 */
+		public double getLogPartition() {
+			return logPartition;
+		}
+
+		public double getPosterior(int position, int tag) {
+			return posteriors[position * numTags + tag];
+		}
+
+		/**
+		 * The tag with the highest posterior at the position.
+		 */
+		public int getBestTag(int position) {
+			int offset = position * numTags;
+			int bestTag = 0;
+			for (int tag = 1; tag < numTags; tag++) {
+				if (posteriors[offset + tag] > posteriors[offset + bestTag])
+					bestTag = tag;
+			}
+			return bestTag;
+		}
+
+		public TagPosteriors(TagLattice lattice) {
+			numTags = lattice.getNumTags();
+			numPositions = lattice.getNumPositions();
+			int numStates = numTags * numTags;
+			// the states reached after each position, alpha and beta for them
+			int[] reachedStates = new int[(numPositions + 1) * numStates];
+			int[] numReachedStates = new int[numPositions + 1];
+			double[] logAlphas = new double[(numPositions + 1) * numStates];
+			double[] logBetas = new double[(numPositions + 1) * numStates];
+			boolean[] reached = new boolean[numStates];
+			int[] transitionTags = new int[numTags];
+			double[] transitionScores = new double[numTags];
+
+			// forward
+			Arrays.fill(logAlphas, Double.NEGATIVE_INFINITY);
+			reachedStates[0] = lattice.getStartState();
+			numReachedStates[0] = 1;
+			logAlphas[reachedStates[0]] = 0.0;
+			for (int position = 0; position < numPositions; position++) {
+				int offset = position * numStates;
+				int nextOffset = offset + numStates;
+				for (int i = 0; i < numReachedStates[position]; i++) {
+					int state = reachedStates[offset + i];
+					double logAlpha = logAlphas[offset + state];
+					int numTransitions = lattice.getTransitions(position,
+							state, transitionTags, transitionScores);
+					for (int t = 0; t < numTransitions; t++) {
+						int nextState = lattice.getNextState(state,
+								transitionTags[t]);
+						if (!reached[nextState]) {
+							reached[nextState] = true;
+							reachedStates[nextOffset
+									+ numReachedStates[position + 1]++] = nextState;
+						}
+						logAlphas[nextOffset + nextState] = SloppyMath.logAdd(
+								logAlphas[nextOffset + nextState], logAlpha
+										+ transitionScores[t]);
+					}
+				}
+				for (int i = 0; i < numReachedStates[position + 1]; i++) {
+					reached[reachedStates[nextOffset + i]] = false;
+				}
+			}
+			logPartition = logAlphas[numPositions * numStates
+					+ lattice.getStopState()];
+
+			// backward
+			Arrays.fill(logBetas, Double.NEGATIVE_INFINITY);
+			logBetas[numPositions * numStates + lattice.getStopState()] = 0.0;
+			for (int position = numPositions - 1; position >= 0; position--) {
+				int offset = position * numStates;
+				int nextOffset = offset + numStates;
+				for (int i = 0; i < numReachedStates[position]; i++) {
+					int state = reachedStates[offset + i];
+					double logBeta = Double.NEGATIVE_INFINITY;
+					int numTransitions = lattice.getTransitions(position,
+							state, transitionTags, transitionScores);
+					for (int t = 0; t < numTransitions; t++) {
+						int nextState = lattice.getNextState(state,
+								transitionTags[t]);
+						logBeta = SloppyMath.logAdd(logBeta,
+								transitionScores[t]
+										+ logBetas[nextOffset + nextState]);
+					}
+					logBetas[offset + state] = logBeta;
+				}
+			}
+
+			// the tag at a position is the last tag of the state after it
+			posteriors = new double[numPositions * numTags];
+			if (logPartition == Double.NEGATIVE_INFINITY)
+				return;
+			for (int position = 0; position < numPositions; position++) {
+				int nextOffset = (position + 1) * numStates;
+				for (int i = 0; i < numReachedStates[position + 1]; i++) {
+					int state = reachedStates[nextOffset + i];
+					double logPosterior = logAlphas[nextOffset + state]
+							+ logBetas[nextOffset + state] - logPartition;
+					posteriors[position * numTags + state % numTags] += Math
+							.exp(logPosterior);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chooses the tag with the highest posterior at each position, which
+	 * maximizes the expected number of correct tags rather than the score of
+	 * the whole path. If every path scores -Infinity, decodes with Viterbi.
+	 */
+	static class PosteriorDecoder implements LatticeDecoder {
+		public int[] getBestTags(TagLattice lattice) {
+			TagPosteriors tagPosteriors = new TagPosteriors(lattice);
+			if (tagPosteriors.getLogPartition() == Double.NEGATIVE_INFINITY)
+				return new LatticeViterbiDecoder().getBestTags(lattice);
+			int[] tags = new int[lattice.getNumPositions()];
+			for (int position = 0; position < tags.length; position++) {
+				tags[position] = tagPosteriors.getBestTag(position);
+			}
+			return tags;
+		}
+	}
+
+	/**
+	 * Beam search over a TagLattice: after each position only the beamWidth
+	 * best scoring states are kept, selected with a min-heap of states keyed
+	 * by score. When given the gold tags of a sentence, it also counts how
+	 * often the gold path fell out of the beam. As with LatticeViterbiDecoder,
+	 * a fallback tag on the best path switches to the greedy path, and if no
+	 * path in the beam reaches the stop state, the lattice is decoded exactly.
+	 */
+	static class BeamDecoder implements LatticeDecoder {
+		int beamWidth;
+		String fallbackTag;
+		int numSentences;
+		int numGoldPathsPruned;
+
+		public int[] getBestTags(TagLattice lattice) {
+			return getBestTags(lattice, null);
+		}
+
+		/**
+		 * Decodes the lattice, and if goldTags (one per position, including
+		 * the final two STOP_TAGs) is not null, records whether the gold
+		 * path was pruned.
+		 */
+		public int[] getBestTags(TagLattice lattice, int[] goldTags) {
+			int numTags = lattice.getNumTags();
+			int numStates = numTags * numTags;
+			int numPositions = lattice.getNumPositions();
+			int[] beamStates = new int[(numPositions + 1) * beamWidth];
+			int[] beamBackpointers = new int[(numPositions + 1) * beamWidth];
+			double[] beamScores = new double[beamWidth];
+			double[] nextBeamScores = new double[beamWidth];
+			double[] nextScores = new double[numStates];
+			int[] nextBackpointers = new int[numStates];
+			boolean[] nextReached = new boolean[numStates];
+			int[] nextStates = new int[numStates];
+			int[] heap = new int[beamWidth];
+			int[] transitionTags = new int[numTags];
+			double[] transitionScores = new double[numTags];
+
+			int beamSize = 1;
+			beamStates[0] = lattice.getStartState();
+			beamScores[0] = 0.0;
+			int goldState = lattice.getStartState();
+			boolean goldPathPruned = false;
+			for (int position = 0; position < numPositions; position++) {
+				int numNextStates = 0;
+				int beamOffset = position * beamWidth;
+				for (int k = 0; k < beamSize; k++) {
+					int state = beamStates[beamOffset + k];
+					int numTransitions = lattice.getTransitions(position,
+							state, transitionTags, transitionScores);
+					for (int t = 0; t < numTransitions; t++) {
+						int nextState = lattice.getNextState(state,
+								transitionTags[t]);
+						double score = beamScores[k] + transitionScores[t];
+						if (!nextReached[nextState]) {
+							nextReached[nextState] = true;
+							nextStates[numNextStates++] = nextState;
+						} else if (!(score > nextScores[nextState] || nextScores[nextState] == Double.NEGATIVE_INFINITY)) {
+							continue;
+						}
+						nextScores[nextState] = score;
+						nextBackpointers[nextState] = k;
+					}
+				}
+
+				// keep the best states in a min-heap on their scores
+				int heapSize = 0;
+				for (int i = 0; i < numNextStates; i++) {
+					int nextState = nextStates[i];
+					nextReached[nextState] = false;
+					if (heapSize < beamWidth) {
+						heap[heapSize] = nextState;
+						siftUp(heap, heapSize++, nextScores);
+					} else if (nextScores[nextState] > nextScores[heap[0]]) {
+						heap[0] = nextState;
+						siftDown(heap, heapSize, nextScores);
+					}
+				}
+
+				if (goldTags != null && !goldPathPruned) {
+					goldState = lattice.getNextState(goldState,
+							goldTags[position]);
+					goldPathPruned = true;
+					for (int k = 0; k < heapSize; k++) {
+						if (heap[k] == goldState)
+							goldPathPruned = false;
+					}
+				}
+
+				int nextBeamOffset = beamOffset + beamWidth;
+				for (int k = 0; k < heapSize; k++) {
+					beamStates[nextBeamOffset + k] = heap[k];
+					beamBackpointers[nextBeamOffset + k] = nextBackpointers[heap[k]];
+					nextBeamScores[k] = nextScores[heap[k]];
+				}
+				double[] swapScores = beamScores;
+				beamScores = nextBeamScores;
+				nextBeamScores = swapScores;
+				beamSize = heapSize;
+			}
+			if (goldTags != null)
+				recordGoldPath(goldPathPruned);
+
+			int k = 0;
+			int stopOffset = numPositions * beamWidth;
+			while (k < beamSize
+					&& beamStates[stopOffset + k] != lattice.getStopState())
+				k++;
+			if (k == beamSize) {
+				// every path to the stop state was pruned (which can happen
+				// when all paths score -Infinity), so decode exactly instead
+				return new LatticeViterbiDecoder(fallbackTag)
+						.getBestTags(lattice);
+			}
+			int[] tags = new int[numPositions];
+			for (int position = numPositions; position > 0; position--) {
+				tags[position - 1] = beamStates[position * beamWidth + k]
+						% numTags;
+				k = beamBackpointers[position * beamWidth + k];
+			}
+
+			if (fallbackTag != null) {
+				int fallbackTagIndex = lattice.getTagIndexer().indexOf(
+						fallbackTag);
+				for (int tag : tags) {
+					if (tag == fallbackTagIndex)
+						return LatticeViterbiDecoder.getGreedyTags(lattice);
+				}
+			}
+			return tags;
+		}
+
+		private static void siftUp(int[] heap, int i, double[] scores) {
+			int state = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!(scores[state] < scores[heap[parent]]))
+					break;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = state;
+		}
+
+		private static void siftDown(int[] heap, int size, double[] scores) {
+			int state = heap[0];
+			int i = 0;
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size
+						&& scores[heap[child + 1]] < scores[heap[child]])
+					child++;
+				if (!(scores[heap[child]] < scores[state]))
+					break;
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = state;
+		}
+
+		private synchronized void recordGoldPath(boolean goldPathPruned) {
+			numSentences++;
+			if (goldPathPruned)
+				numGoldPathsPruned++;
+		}
+
+		public synchronized void resetStatistics() {
+			numSentences = 0;
+			numGoldPathsPruned = 0;
+		}
+
+		public synchronized String getStatistics() {
+			return "Beam width " + beamWidth + " pruned the gold path in "
+					+ numGoldPathsPruned + " of " + numSentences
+					+ " sentences";
+		}
+
+		public BeamDecoder(int beamWidth) {
+			this(beamWidth, null);
+		}
+
+		public BeamDecoder(int beamWidth, String fallbackTag) {
+			if (beamWidth < 1)
+				throw new IllegalArgumentException("Beam width must be positive");
+			this.beamWidth = beamWidth;
+			this.fallbackTag = fallbackTag;
+		}
+	}
+
 	static class POSTagger {
 
 		LocalTrigramScorer localTrigramScorer;
 		TrellisDecoder<State> trellisDecoder;
+		LatticeDecoder latticeDecoder;
+		Indexer<String> tagIndexer;
+		boolean streamingLattice = true;
+		TagDictionary tagDictionary;
+		boolean useTagDictionary = false;
 
 		// chop up the training instances into local contexts and pass them on
 		// to the local scorer.
+		// the tag dictionary is only built if it is already enabled
 		public void train(List<TaggedSentence> taggedSentences) {
+			tagIndexer = buildTagIndexer(taggedSentences);
+			tagDictionary = (useTagDictionary ? new TagDictionary(
+					taggedSentences, tagIndexer,
+					MostFrequentTagScorer.RARE_WORD_COUNT) : null);
+			if (localTrigramScorer instanceof DenseLocalTrigramScorer) {
+				DenseLocalTrigramScorer denseScorer = (DenseLocalTrigramScorer) localTrigramScorer;
+				denseScorer.trainOnSentences(taggedSentences);
+				denseScorer.compile(tagIndexer);
+				return;
+			}
 			localTrigramScorer
 					.train(extractLabeledLocalTrigramContexts(taggedSentences));
 		}
 
+		// index the boundary tags first, so that the start state is 0
+		private static Indexer<String> buildTagIndexer(
+				List<TaggedSentence> taggedSentences) {
+			Indexer<String> tagIndexer = new Indexer<String>();
+			tagIndexer.add(START_TAG);
+			tagIndexer.add(STOP_TAG);
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				for (String tag : taggedSentence.getTags()) {
+					tagIndexer.add(tag);
+				}
+			}
+			return tagIndexer;
+		}
+
 		// chop up the validation instances into local contexts and pass them on
 		// to the local scorer.
 		public void validate(List<TaggedSentence> taggedSentences) {
@@ -447,6 +1260,9 @@ public class POSTaggerTester {
 			State stopState = State.getStopState(sentence.size() + 2);
 			trellis.setStopState(stopState);
 			Set<State> states = Collections.singleton(State.getStartState());
+			TagDictionary tagDictionary = getTagDictionary();
+			int[] dictionaryWords = (tagDictionary != null ? tagDictionary
+					.encodeWords(sentence) : null);
 			for (int position = 0; position <= sentence.size() + 1; position++) {
 				Set<State> nextStates = new HashSet<State>();
 				for (State state : states) {
@@ -457,7 +1273,10 @@ public class POSTaggerTester {
 							state.getPreviousTag());
 					Counter<String> tagScores = localTrigramScorer
 							.getLogScoreCounter(localTrigramContext);
-                    for (String tag : tagScores.keySet()) {
+					Set<String> tags = tagScores.keySet();
+					if (tagDictionary != null)
+						tags = restrictTags(tags, dictionaryWords[position]);
+                    for (String tag : tags) {
                         double score = tagScores.getCount(tag);  
                     
                         State nextState = state.getNextState(tag);
@@ -470,23 +1289,161 @@ public class POSTaggerTester {
 			return trellis;
 		}
 
-		// to tag a sentence: build its trellis and find a path through that
-		// trellis
-		public List<String> tag(List<String> sentence) {
-			Trellis<State> trellis = buildTrellis(sentence);
-            List<State> states = trellisDecoder.getBestPath(trellis);
-            //states = Collections.reverse(states);
-            List<String> tags = State.toTagList(states);
-            tags = stripBoundaryTags(tags);
-			return tags;
+		// the tags the dictionary allows for the word, or all of them if it
+		// allows none
+		private Set<String> restrictTags(Set<String> tags, int word) {
+			Set<String> allowedTags = new LinkedHashSet<String>();
+			for (String tag : tags) {
+				if (tagDictionary.allowsTag(word, tagIndexer.indexOf(tag)))
+					allowedTags.add(tag);
+			}
+			return (allowedTags.isEmpty() ? tags : allowedTags);
 		}
 
 		/**
-		 * Scores a tagging for a sentence. Note that a tag sequence not
-		 * accepted by the markov process should receive a log score of
-		 * Double.NEGATIVE_INFINITY.
+		 * If true (the default), sentences are decoded over a
+		 * StreamingTagLattice; otherwise the whole lattice is built first.
 		 */
-		public double scoreTagging(TaggedSentence taggedSentence) {
+		public void setStreamingLattice(boolean streamingLattice) {
+			this.streamingLattice = streamingLattice;
+		}
+
+		/**
+		 * If true, frequent words are only given the tags they were seen
+		 * with in training, in the lattice and in the trellis. The dictionary
+		 * is built by train(), so this must be set before training; a tagger
+		 * trained (or saved) without it cannot enable it later.
+		 */
+		public void setUseTagDictionary(boolean useTagDictionary) {
+			if (useTagDictionary && tagIndexer != null && tagDictionary == null)
+				throw new IllegalStateException(
+						"The tagger was trained without a tag dictionary");
+			this.useTagDictionary = useTagDictionary;
+		}
+
+		private TagDictionary getTagDictionary() {
+			return (useTagDictionary ? tagDictionary : null);
+		}
+
+		private TagLattice getTagLattice(List<String> sentence) {
+			if (streamingLattice)
+				return new StreamingTagLattice(tagIndexer, sentence,
+						localTrigramScorer, getTagDictionary());
+			return buildTagLattice(sentence);
+		}
+
+		/**
+		 * Builds the ArrayTagLattice of a sentence, expanding the same states
+		 * as buildTrellis but over tag ids, with the transitions taken from a
+		 * StreamingTagLattice.
+		 */
+		private ArrayTagLattice buildTagLattice(List<String> sentence) {
+			int numTags = tagIndexer.size();
+			ArrayTagLattice lattice = new ArrayTagLattice(tagIndexer,
+					sentence.size() + 2);
+			TagLattice scores = new StreamingTagLattice(tagIndexer, sentence,
+					localTrigramScorer, getTagDictionary());
+			int[] transitionTags = new int[numTags];
+			double[] transitionScores = new double[numTags];
+			boolean[] reached = new boolean[numTags * numTags];
+			boolean[] nextReached = new boolean[numTags * numTags];
+			reached[lattice.getStartState()] = true;
+			for (int position = 0; position < lattice.getNumPositions(); position++) {
+				for (int state = 0; state < reached.length; state++) {
+					if (!reached[state])
+						continue;
+					reached[state] = false;
+					lattice.addSourceState(position, state);
+					int numTransitions = scores.getTransitions(position, state,
+							transitionTags, transitionScores);
+					for (int t = 0; t < numTransitions; t++) {
+						lattice.addTransition(transitionTags[t],
+								transitionScores[t]);
+						nextReached[lattice.getNextState(state,
+								transitionTags[t])] = true;
+					}
+				}
+				boolean[] swap = reached;
+				reached = nextReached;
+				nextReached = swap;
+			}
+			return lattice;
+		}
+
+		// to tag a sentence: build its trellis and find a path through that
+		// trellis
+		public List<String> tag(List<String> sentence) {
+			if (latticeDecoder != null) {
+				return getTags(latticeDecoder
+						.getBestTags(getTagLattice(sentence)), sentence.size());
+			}
+			Trellis<State> trellis = buildTrellis(sentence);
+            List<State> states = trellisDecoder.getBestPath(trellis);
+            //states = Collections.reverse(states);
+            List<String> tags = State.toTagList(states);
+            tags = stripBoundaryTags(tags);
+			return tags;
+		}
+
+		/**
+		 * Returns, for each word of the sentence, the posterior probability
+		 * of each tag that has a nonzero one.
+		 */
+		public List<Counter<String>> getTagPosteriors(List<String> sentence) {
+			TagPosteriors tagPosteriors = new TagPosteriors(
+					getTagLattice(sentence));
+			List<Counter<String>> posteriors = new ArrayList<Counter<String>>(
+					sentence.size());
+			for (int position = 0; position < sentence.size(); position++) {
+				Counter<String> tagCounter = new Counter<String>();
+				for (int tag = 0; tag < tagIndexer.size(); tag++) {
+					double posterior = tagPosteriors.getPosterior(position, tag);
+					if (posterior > 0.0)
+						tagCounter.setCount(tagIndexer.get(tag), posterior);
+				}
+				posteriors.add(tagCounter);
+			}
+			return posteriors;
+		}
+
+		/**
+		 * Tags a sentence whose gold tags are known, so that a BeamDecoder
+		 * can record whether it pruned the gold path.
+		 */
+		public List<String> tag(List<String> sentence, List<String> goldTags) {
+			if (!(latticeDecoder instanceof BeamDecoder))
+				return tag(sentence);
+			int[] goldTagIndexes = new int[sentence.size() + 2];
+			for (int position = 0; position < goldTagIndexes.length; position++) {
+				String goldTag = (position < sentence.size() ? goldTags
+						.get(position) : STOP_TAG);
+				goldTagIndexes[position] = tagIndexer.indexOf(goldTag);
+				if (goldTagIndexes[position] < 0) {
+					// a tag never seen in training cannot be in the lattice
+					goldTagIndexes = null;
+					break;
+				}
+			}
+			return getTags(((BeamDecoder) latticeDecoder).getBestTags(
+					getTagLattice(sentence), goldTagIndexes), sentence.size());
+		}
+
+		private List<String> getTags(int[] tagIndexes, int length) {
+			List<String> tags = new ArrayList<String>(length);
+			for (int position = 0; position < length; position++) {
+				tags.add(tagIndexer.get(tagIndexes[position]));
+			}
+			return tags;
+		}
+
+		/**
+		 * Scores a tagging for a sentence. Note that a tag sequence not
+		 * accepted by the markov process should receive a log score of
+		 * Double.NEGATIVE_INFINITY.
+		 */
+		public double scoreTagging(TaggedSentence taggedSentence) {
+			if (localTrigramScorer instanceof DenseLocalTrigramScorer)
+				return scoreTaggingDensely(taggedSentence);
 			double logScore = 0.0;
 			List<LabeledLocalTrigramContext> labeledLocalTrigramContexts = extractLabeledLocalTrigramContexts(taggedSentence);
 			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
@@ -521,15 +1478,149 @@ public class POSTaggerTester {
 			return logScore;
 		}
 
+		/**
+		 * scoreTagging over the tables of a DenseLocalTrigramScorer. A tag
+		 * the tagger has not indexed adds nothing, as it is never in a
+		 * score Counter, and is -1 in the contexts after it.
+		 */
+		private double scoreTaggingDensely(TaggedSentence taggedSentence) {
+			DenseLocalTrigramScorer denseLocalTrigramScorer = (DenseLocalTrigramScorer) localTrigramScorer;
+			List<String> words = taggedSentence.getWords();
+			List<String> tags = taggedSentence.getTags();
+			int[] wordCodes = denseLocalTrigramScorer.encodeWords(words);
+			int[] candidateTags = new int[tagIndexer.size()];
+			double[] candidateScores = new double[tagIndexer.size()];
+			int startTag = tagIndexer.indexOf(START_TAG);
+			int previousPreviousTag = startTag;
+			int previousTag = startTag;
+			double logScore = 0.0;
+			for (int position = 0; position < wordCodes.length; position++) {
+				int currentTag = tagIndexer
+						.indexOf(position < words.size() ? tags.get(position)
+								: STOP_TAG);
+				int numCandidates = denseLocalTrigramScorer.getLogScores(
+						wordCodes, position, previousPreviousTag, previousTag,
+						candidateTags, candidateScores);
+				for (int c = 0; c < numCandidates; c++) {
+					if (candidateTags[c] == currentTag)
+						logScore += candidateScores[c];
+				}
+				previousPreviousTag = previousTag;
+				previousTag = currentTag;
+			}
+			return logScore;
+		}
+
 		private List<String> stripBoundaryTags(List<String> tags) {
 			return tags.subList(2, tags.size() - 2);
 		}
 
+		/**
+		 * The training vocabulary of a tagger whose scorer is a
+		 * MostFrequentTagScorer, such as one returned by load().
+		 */
+		public Set<String> getTrainingVocabulary() {
+			return ((MostFrequentTagScorer) localTrigramScorer)
+					.getTrainingVocabulary();
+		}
+
+		private static final int MODEL_MAGIC = 0x504f5354; // "POST"
+		private static final int MODEL_VERSION = 4;
+
+		/**
+		 * Writes this trained tagger, whose scorer must be a
+		 * MostFrequentTagScorer, to a binary model file with this layout:
+		 * <p/>
+		 * magic and version, as big-endian ints; the tag list and the scorer's
+		 * word list; 1 if a tag dictionary follows and 0 otherwise, as an int;
+		 * the tag dictionary's word list, if any; the tables written by
+		 * MostFrequentTagScorer.writeCompiled(); and the two tables of the
+		 * TagDictionary, if any. Each table is its length, zero padding that
+		 * aligns its values in the file, and its big-endian values; each
+		 * string list is its length followed by every string as a byte count
+		 * and its UTF-8 bytes.
+		 */
+		public void save(File file) throws IOException {
+			if (!(localTrigramScorer instanceof MostFrequentTagScorer))
+				throw new UnsupportedOperationException(
+						"Only a MostFrequentTagScorer can be saved");
+			MostFrequentTagScorer scorer = (MostFrequentTagScorer) localTrigramScorer;
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			try {
+				out.writeInt(MODEL_MAGIC);
+				out.writeInt(MODEL_VERSION);
+				writeStringList(out, tagIndexer);
+				writeStringList(out, scorer.wordIndexer);
+				out.writeInt(tagDictionary != null ? 1 : 0);
+				if (tagDictionary != null)
+					writeStringList(out, tagDictionary.wordIndexer);
+				scorer.writeCompiled(out);
+				if (tagDictionary != null) {
+					writeIntBuffer(out, tagDictionary.wordStarts);
+					writeIntBuffer(out, tagDictionary.wordTags);
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Loads a tagger written by save(), decoding with the given decoder.
+		 * No training data is needed. The file is memory-mapped and the tables
+		 * are used in place, as views of the mapping, so loading is nearly
+		 * instant and processes that load the same file share one copy
+		 * through the page cache; only the word lists are decoded into
+		 * Indexers. The file is limited to 2GB.
+		 */
+		public static POSTagger load(File file, LatticeDecoder latticeDecoder)
+				throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt() != MODEL_MAGIC)
+					throw new IOException("Not a tagger model: " + file);
+				int version = buffer.getInt();
+				if (version != MODEL_VERSION)
+					throw new IOException("Unsupported model version " + version
+							+ ": " + file);
+				Indexer<String> tagIndexer = readStringIndexer(buffer);
+				Indexer<String> wordIndexer = readStringIndexer(buffer);
+				Indexer<String> dictionaryWordIndexer = null;
+				if (buffer.getInt() != 0)
+					dictionaryWordIndexer = readStringIndexer(buffer);
+
+				POSTagger posTagger = new POSTagger(MostFrequentTagScorer
+						.readCompiled(buffer, tagIndexer, wordIndexer),
+						latticeDecoder);
+				posTagger.tagIndexer = tagIndexer;
+				if (dictionaryWordIndexer != null)
+					posTagger.tagDictionary = new TagDictionary(
+							dictionaryWordIndexer, readIntBuffer(buffer),
+							readIntBuffer(buffer));
+				if (buffer.hasRemaining())
+					throw new IOException("Trailing data in model file: " + file);
+				return posTagger;
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated model file: " + file, e);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
 		public POSTagger(LocalTrigramScorer localTrigramScorer,
 				TrellisDecoder<State> trellisDecoder) {
 			this.localTrigramScorer = localTrigramScorer;
 			this.trellisDecoder = trellisDecoder;
 		}
+
+		public POSTagger(LocalTrigramScorer localTrigramScorer,
+				LatticeDecoder latticeDecoder) {
+			this.localTrigramScorer = localTrigramScorer;
+			this.latticeDecoder = latticeDecoder;
+		}
 	}
 
 	/**
@@ -624,6 +1715,253 @@ public class POSTaggerTester {
 		void validate(List<LabeledLocalTrigramContext> localTrigramContexts);
 	}
 
+	/**
+	 * A LocalTrigramScorer which, once trained, can be compiled into tables
+	 * over tag ids and word ids, and then scores a context with a few array
+	 * reads and no allocation. The scores must be those of getLogScoreCounter.
+	 */
+	static interface DenseLocalTrigramScorer extends LocalTrigramScorer {
+		/**
+		 * Trains on the local contexts of the sentences, as train() would.
+		 */
+		void trainOnSentences(List<TaggedSentence> taggedSentences);
+
+		/**
+		 * Builds the tables, numbering tags as the tagIndexer does.
+		 */
+		void compile(Indexer<String> tagIndexer);
+
+		/**
+		 * Encodes the words at positions 0 to sentence.size() + 1 (the last
+		 * two being STOP_WORD) for getLogScores.
+		 */
+		int[] encodeWords(List<String> sentence);
+
+		/**
+		 * Writes the tags which may occur at the position after the two given
+		 * tags, and their log scores, into the arrays and returns how many
+		 * there are. The arrays must hold as many entries as there are tags.
+		 * A previous tag the scorer does not know is given as -1.
+		 */
+		int getLogScores(int[] wordCodes, int position,
+				int previousPreviousTag, int previousTag, int[] tags,
+				double[] scores);
+	}
+
+	/**
+	 * P(tag | suffix) for unknown words, as in TnT: a trie of the reversed
+	 * last letters of rare training words, with separate roots for
+	 * capitalized and other words. Each node's distribution is its own
+	 * relative frequency interpolated with its parent's by successive
+	 * abstraction, P(t | s_i) = (f(t | s_i) + theta * P(t | s_i-1)) / (1 +
+	 * theta). Once built, the trie is flat tables: the children of a node are
+	 * the nodes childStarts[node] to childStarts[node + 1] - 1, sorted by
+	 * their letter, so a word is looked up with no allocation. The tables
+	 * wrap heap arrays after build() and are views of the model file when
+	 * read back.
+	 */
+	static class SuffixTagModel {
+		int numTags;
+		int maxSuffixLength;
+		int numNodes;
+		IntBuffer childStarts;
+		CharBuffer nodeChars;
+		DoubleBuffer tagProbabilities; // node * numTags + tag
+
+		// the trie while it is built: letters, linked lists of children, and
+		// counts
+		char[] letters;
+		int[] firstChildren;
+		int[] nextSiblings;
+		double[] tagCounts;
+
+		static final int LOWER_CASE_ROOT = 0;
+		static final int CAPITALIZED_ROOT = 1;
+
+		public int getNumNodes() {
+			return numNodes;
+		}
+
+		/**
+		 * The node of the longest suffix of the word that is in the trie.
+		 */
+		public int getNode(String word) {
+			int node = getRoot(word);
+			int suffixLength = Math.min(word.length(), maxSuffixLength);
+			for (int i = 1; i <= suffixLength; i++) {
+				int child = binarySearch(nodeChars, childStarts.get(node),
+						childStarts.get(node + 1), word.charAt(word.length() - i));
+				if (child < 0)
+					break;
+				node = child;
+			}
+			return node;
+		}
+
+		public double getTagProbability(int node, int tag) {
+			return tagProbabilities.get(node * numTags + tag);
+		}
+
+		private static int getRoot(String word) {
+			return (Character.isUpperCase(word.charAt(0)) ? CAPITALIZED_ROOT
+					: LOWER_CASE_ROOT);
+		}
+
+		/**
+		 * Counts a token of a word with the tag, at the root and at each of
+		 * its suffixes up to maxSuffixLength letters.
+		 */
+		public void addWord(String word, int tag) {
+			int node = getRoot(word);
+			tagCounts[node * numTags + tag]++;
+			int suffixLength = Math.min(word.length(), maxSuffixLength);
+			for (int i = 1; i <= suffixLength; i++) {
+				char c = word.charAt(word.length() - i);
+				int child = firstChildren[node];
+				while (child >= 0 && letters[child] != c)
+					child = nextSiblings[child];
+				if (child < 0) {
+					child = addNode(c);
+					nextSiblings[child] = firstChildren[node];
+					firstChildren[node] = child;
+				}
+				node = child;
+				tagCounts[node * numTags + tag]++;
+			}
+		}
+
+		private int addNode(char c) {
+			if (numNodes == letters.length) {
+				letters = Arrays.copyOf(letters, 2 * numNodes);
+				firstChildren = Arrays.copyOf(firstChildren, 2 * numNodes);
+				nextSiblings = Arrays.copyOf(nextSiblings, 2 * numNodes);
+				tagCounts = Arrays.copyOf(tagCounts, 2 * numNodes * numTags);
+			}
+			letters[numNodes] = c;
+			firstChildren[numNodes] = -1;
+			nextSiblings[numNodes] = -1;
+			return numNodes++;
+		}
+
+		/**
+		 * Lays the trie out breadth first, so that the children of each node
+		 * are contiguous, and smooths each node's distribution with its
+		 * parent's.
+		 */
+		public void build(double theta) {
+			int[] nodes = new int[numNodes]; // new node id -> old node id
+			int[] parents = new int[numNodes]; // by new node id
+			char[] newNodeChars = new char[numNodes];
+			int[] starts = new int[numNodes + 1];
+			nodes[0] = LOWER_CASE_ROOT;
+			nodes[1] = CAPITALIZED_ROOT;
+			parents[0] = -1;
+			parents[1] = -1;
+			int numLaidOut = 2;
+			char[] childChars = new char[256];
+			int[] children = new int[256];
+			for (int node = 0; node < numNodes; node++) {
+				starts[node] = numLaidOut;
+				int numChildren = 0;
+				for (int child = firstChildren[nodes[node]]; child >= 0; child = nextSiblings[child]) {
+					if (numChildren == children.length) {
+						children = Arrays.copyOf(children, 2 * numChildren);
+						childChars = Arrays.copyOf(childChars, 2 * numChildren);
+					}
+					// insertion sort by letter
+					int i = numChildren++;
+					for (; i > 0 && childChars[i - 1] > letters[child]; i--) {
+						childChars[i] = childChars[i - 1];
+						children[i] = children[i - 1];
+					}
+					childChars[i] = letters[child];
+					children[i] = child;
+				}
+				for (int i = 0; i < numChildren; i++) {
+					nodes[numLaidOut] = children[i];
+					parents[numLaidOut] = node;
+					newNodeChars[numLaidOut] = childChars[i];
+					numLaidOut++;
+				}
+			}
+			starts[numNodes] = numNodes;
+
+			// parents come before their children
+			double[] probabilities = new double[numNodes * numTags];
+			for (int node = 0; node < numNodes; node++) {
+				int offset = node * numTags;
+				int oldOffset = nodes[node] * numTags;
+				double total = 0.0;
+				for (int tag = 0; tag < numTags; tag++) {
+					total += tagCounts[oldOffset + tag];
+				}
+				for (int tag = 0; tag < numTags; tag++) {
+					double probability = (total > 0.0 ? tagCounts[oldOffset
+							+ tag]
+							/ total : 0.0);
+					if (parents[node] >= 0)
+						probability = (probability + theta
+								* probabilities[parents[node] * numTags + tag])
+								/ (1.0 + theta);
+					probabilities[offset + tag] = probability;
+				}
+			}
+			childStarts = IntBuffer.wrap(starts);
+			nodeChars = CharBuffer.wrap(newNodeChars);
+			tagProbabilities = DoubleBuffer.wrap(probabilities);
+			letters = null;
+			firstChildren = null;
+			nextSiblings = null;
+			tagCounts = null;
+		}
+
+		/**
+		 * TnT's theta: the standard deviation of the tag probabilities of the
+		 * tags with nonzero ones.
+		 */
+		public static double getTheta(double[] tagProbabilities) {
+			int numTags = 0;
+			for (double probability : tagProbabilities) {
+				if (probability > 0.0)
+					numTags++;
+			}
+			if (numTags < 2)
+				return 0.0;
+			double mean = 1.0 / numTags;
+			double sumOfSquares = 0.0;
+			for (double probability : tagProbabilities) {
+				if (probability > 0.0)
+					sumOfSquares += (probability - mean) * (probability - mean);
+			}
+			return Math.sqrt(sumOfSquares / (numTags - 1));
+		}
+
+		/**
+		 * A built trie, as read back from its tables.
+		 */
+		public SuffixTagModel(int numTags, int maxSuffixLength,
+				IntBuffer childStarts, CharBuffer nodeChars,
+				DoubleBuffer tagProbabilities) {
+			this.numTags = numTags;
+			this.maxSuffixLength = maxSuffixLength;
+			this.numNodes = nodeChars.limit();
+			this.childStarts = childStarts;
+			this.nodeChars = nodeChars;
+			this.tagProbabilities = tagProbabilities;
+		}
+
+		public SuffixTagModel(int numTags, int maxSuffixLength) {
+			this.numTags = numTags;
+			this.maxSuffixLength = maxSuffixLength;
+			letters = new char[16];
+			firstChildren = new int[16];
+			nextSiblings = new int[16];
+			tagCounts = new double[16 * numTags];
+			addNode('\0');
+			addNode('\0');
+		}
+	}
+
 	/**
 	 * The MostFrequentTagScorer gives each test word the tag it was seen with
 	 * most often in training (or the tag with the most seen word types if the
@@ -632,252 +1970,974 @@ public class POSTaggerTester {
 	 * will forbid illegal tag trigrams, otherwise it makes no use of tag
 	 * history information whatsoever.
 	 */
-	static class MostFrequentTagScorer implements LocalTrigramScorer {
+	static class MostFrequentTagScorer implements DenseLocalTrigramScorer {
 
 		boolean restrictTrigrams; // if true, assign log score of
 									// Double.NEGATIVE_INFINITY to illegal tag
 									// trigrams.
-
-		CounterMap<String, String> wordsToTags = new CounterMap<String, String>();
-		Counter<String> unknownWordTags = new Counter<String>();
-		Set<String> seenTagTrigrams = new HashSet<String>();
-        
-        Counter<String> unknownPPPTagsTags = new Counter<String>();
-        CounterMap<String, String> tagsToWords = new CounterMap<String, String>();
-        CounterMap<String, String> tagsToTags = new CounterMap<String, String>();
-        Counter<String> unknownTagWords = new Counter<String>();
-
-        Counter<String> unknownPPTagsTags = new Counter<String>();
-        CounterMap<String, String> tagsToTags2 = new CounterMap<String, String>();
-        Counter<String> Tags = new Counter<String>();
-
-        Counter<String> Words = new Counter<String>();
-        CounterMap<String, String> unknownWordTags2 = new CounterMap<String, String>();
-
-        CounterMap<String, String> Special = new CounterMap<String, String>();
+		boolean useSuffixModel; // if true, score unknown words with a
+								// SuffixTagModel instead of buckets.
+
+		// The model, over the tags and words of the training data in order of
+		// first occurrence. The word-tag counts are kept raw, and divided by
+		// the word's or the tag's total to give P(tag | word) or P(word |
+		// tag); the other tables are smoothed and normalized in place. A zero
+		// probability means the tag was never given one, and is not scored.
+		Indexer<String> trainingTags;
+		Indexer<String> wordIndexer;
+		int numTrainingTags;
+		double[] wordTagCounts; // word * numTrainingTags + tag
+		double[] wordCounts;
+		double[] tagCounts;
+		double[] tagProbabilities;
+		// P(word | tag) for tags never seen in training: the first word of
+		// each tag
+		double[] unknownTagWordProbabilities;
+		// P(tag | previousPreviousTag, previousTag), with STOP_TAG counted
+		// once more for every token in the context, and the row for unseen
+		// contexts tallying the tag of the first token of each context
+		double[] trigramProbabilities; // context * numTrainingTags + tag
+		double[] unknownTrigramProbabilities;
+		// P(tag | previousTag), and for previous tags never seen, the tags
+		// seen before they had been seen as a previous tag
+		boolean[] seenPreviousTags;
+		double[] bigramProbabilities; // previousTag * numTrainingTags + tag
+		double[] unknownBigramProbabilities;
+		boolean[] seenTagTrigrams;
+		// P(tag | bucket), over the tokens of words seen at most
+		// RARE_WORD_COUNT times
+		Indexer<String> unknownWordBuckets;
+		double[] bucketTagProbabilities; // bucket * numTrainingTags + tag
+
+		static final int RARE_WORD_COUNT = 5;
+
+		// P(tag | suffix) for unknown words, over the tokens of rare words,
+		// if useSuffixModel is set
+		SuffixTagModel suffixTagModel;
+
+		static final int MAX_SUFFIX_LENGTH = 5;
+
+		// The model compiled by compile(), over the tagger's tag ids. For each
+		// context previousPreviousTag * numTags + previousTag, the candidate
+		// tags and the log of their interpolated transition probability. For
+		// each known word, and then each unknown word bucket, a row of the
+		// tags it has an emission score for, sorted by tag, with log P(tag |
+		// word) and log P(word | tag) (NaN if the word was not seen with the
+		// tag). The tables wrap heap arrays after compile(), and are views of
+		// the model file, scored from in place, after readCompiled().
+		Indexer<String> tagIndexer;
+		int startTagIndex;
+		IntBuffer contextStarts;
+		IntBuffer candidateTags;
+		DoubleBuffer candidateLogTransitions;
+		IntBuffer rowStarts;
+		IntBuffer rowTags;
+		DoubleBuffer rowLogTagGivenWords;
+		DoubleBuffer rowLogWordGivenTags;
+		int startSentenceBucket;
+		int initCapitalBucket;
+		int digitalBucket;
+		int unseenBucket;
+		CharBuffer firstLetters;
+		IntBuffer firstLetterBuckets;
+		CharBuffer lastLetters;
+		IntBuffer lastLetterBuckets;
+		// with a suffix model, unknown words are coded by their suffix node,
+		// and emit log P(tag | suffix) / P(tag): node * numTags + tag
+		DoubleBuffer suffixLogEmissions;
 		public int getHistorySize() {
 			return 2;
 		}
 
         public Counter<String> getLogScoreCounter(
 				LocalTrigramContext localTrigramContext) {
+			if (trainingTags == null)
+				return getCompiledLogScoreCounter(localTrigramContext);
 			int position = localTrigramContext.getPosition();
 			String WORD = localTrigramContext.getWords().get(position);
-			Counter<String> tagCounter3 = unknownWordTags;
-            
-            String PPPtag = localTrigramContext.getPreviousPreviousTag()
-                            + "_" + localTrigramContext.getPreviousTag();
-            String PPTag = localTrigramContext.getPreviousTag();
-
-            Counter<String> tagCounter = unknownPPPTagsTags;
-           // 
-            if (tagsToTags.keySet().contains(PPPtag)){
-                 tagCounter = tagsToTags.getCounter(PPPtag);
-            }
-            Counter<String> tagCounter2 = unknownPPTagsTags;
-            if (tagsToTags2.keySet().contains(PPTag)){
-                tagCounter2 = tagsToTags2.getCounter(PPTag);
-            }
-            
-            Counter<String> logScoreCounter = new Counter<String>();
-            //
-            if (wordsToTags.keySet().contains(WORD)) {
-				tagCounter3 = wordsToTags.getCounter(WORD);
-            }
-            else{
-                //Pattern p = Pattern.compile("[^a-z0-9 ]", Pattern.CASE_INSENSITIVE);
-                if (PPTag == START_TAG) {WORD = "startSentence";}
-                else if (Character.isUpperCase(WORD.charAt(0))) {WORD = "initCapital";}
-                else if (WORD.matches(".*\\d+.*")) {WORD = "digital";}
-                else if (WORD.length() < 12) {WORD = "firstLetter-" +  WORD.charAt(0);}
-                else {WORD = "lastLetter-" + WORD.charAt(WORD.length()-1);}
-                tagCounter3 = unknownWordTags2.getCounter(WORD);
-            }
-           // 
-			Set<String> allowedFollowingTags = allowedFollowingTags(
-					tagCounter.keySet(),
-					localTrigramContext.getPreviousPreviousTag(),
-					localTrigramContext.getPreviousTag());
-			
-			//Counter<String> logScoreCounter = new Counter<String>();
-            /*
-            for (String tag : tagCounter.keySet()) {
-				double logScore = Math.log(tagCounter.getCount(tag));
-				if (!restrictTrigrams || allowedFollowingTags.isEmpty()
-						|| allowedFollowingTags.contains(tag))
-				logScoreCounter.setCount(tag, logScore);
-			}
-            */
-            //for (String tag: Tags.keySet()){
-            for (String tag : tagCounter.keySet()) {
-                Counter<String> wordCounter = unknownTagWords;
-                double logScore = Double.NEGATIVE_INFINITY;
-                if (tagsToWords.keySet().contains(tag)){
-                    wordCounter = tagsToWords.getCounter(tag);
-                }
-               //
-                if (tagCounter3.keySet().contains(tag)){
-                    logScore = Math.log(tagCounter3.getCount(tag));
-                }
-                //
-                if (wordCounter.keySet().contains(WORD)){
-                    logScore = Math.log(0.6*tagCounter.getCount(tag)+0.3*tagCounter2.getCount(tag)+0.1*Tags.getCount(tag)) 
-                         + Math.log(wordCounter.getCount(WORD));
-                    //logScore = - nlp.math.SloppyMath.logAdd(tagCounter.getCount(tag), wordCounter.getCount(WORD));
-                }
-                
-                if (!restrictTrigrams || allowedFollowingTags.isEmpty()
-                    || allowedFollowingTags.contains(tag)){
-                    logScoreCounter.setCount(tag, logScore);
-                }
+			String PPTag = localTrigramContext.getPreviousTag();
+			int previousPreviousTag = trainingTags.indexOf(localTrigramContext
+					.getPreviousPreviousTag());
+			int previousTag = trainingTags.indexOf(PPTag);
+			int contextOffset = getContextOffset(previousPreviousTag,
+					previousTag);
+
+			// an unknown word is scored by its suffix if there is a suffix
+			// model, and otherwise as its bucket, and by P(bucket | tag) if
+			// some training word happens to be called that
+			int word = wordIndexer.indexOf(WORD);
+			int bucket = -1;
+			int suffixNode = -1;
+			if (word < 0 && suffixTagModel != null) {
+				suffixNode = suffixTagModel.getNode(WORD);
+			} else if (word < 0) {
+				WORD = getUnknownWordBucket(WORD, PPTag == START_TAG);
+				bucket = unknownWordBuckets.indexOf(WORD);
+			}
+			int emittedWord = (word < 0 ? wordIndexer.indexOf(WORD) : word);
+
+			boolean anyTrigramAllowed = isAnyTrigramAllowed(contextOffset);
+			Counter<String> logScoreCounter = new Counter<String>();
+			for (int tag = 0; tag < numTrainingTags; tag++) {
+				if (getTrigramProbability(contextOffset, tag) == 0.0)
+					continue;
+				if (!isTrigramAllowed(contextOffset, anyTrigramAllowed, tag))
+					continue;
+				if (suffixNode >= 0) {
+					logScoreCounter.setCount(trainingTags.get(tag),
+							getLogTransition(contextOffset, previousTag, tag)
+									+ getLogSuffixEmission(suffixNode, tag));
+					continue;
+				}
+				double tagGivenWord = (word >= 0 ? getTagGivenWord(word, tag)
+						: getTagGivenBucket(bucket, tag));
+				double wordGivenTag = getWordGivenTag(emittedWord, tag);
+				double logScore = Double.NEGATIVE_INFINITY;
+				if (tagGivenWord > 0.0)
+					logScore = Math.log(tagGivenWord);
+				if (wordGivenTag > 0.0)
+					logScore = getLogTransition(contextOffset, previousTag, tag)
+							+ Math.log(wordGivenTag);
+				logScoreCounter.setCount(trainingTags.get(tag), logScore);
+			}
+			return logScoreCounter;
+		}
 
-            }
-			//
-            return logScoreCounter;
+		// a scorer read by readCompiled() has only the compiled tables
+		private Counter<String> getCompiledLogScoreCounter(
+				LocalTrigramContext localTrigramContext) {
+			int[] tags = new int[tagIndexer.size()];
+			double[] scores = new double[tagIndexer.size()];
+			int numTags = getLogScores(encodeWords(localTrigramContext
+					.getWords()), localTrigramContext.getPosition(), tagIndexer
+					.indexOf(localTrigramContext.getPreviousPreviousTag()),
+					tagIndexer.indexOf(localTrigramContext.getPreviousTag()),
+					tags, scores);
+			Counter<String> logScoreCounter = new Counter<String>();
+			for (int i = 0; i < numTags; i++) {
+				logScoreCounter.setCount(tagIndexer.get(tags[i]), scores[i]);
+			}
+			return logScoreCounter;
 		}
 
-		private Set<String> allowedFollowingTags(Set<String> tags,
-				String previousPreviousTag, String previousTag) {
-			Set<String> allowedTags = new HashSet<String>();
-			for (String tag : tags) {
-				String trigramString = makeTrigramString(previousPreviousTag,
-						previousTag, tag);
-				if (seenTagTrigrams.contains((trigramString))) {
-					allowedTags.add(tag);
-				}
+		/**
+		 * The offset of the context's row of trigramProbabilities, or -1 if
+		 * the context was not seen in training.
+		 */
+		private int getContextOffset(int previousPreviousTag, int previousTag) {
+			if (previousPreviousTag < 0 || previousTag < 0)
+				return -1;
+			int contextOffset = (previousPreviousTag * numTrainingTags + previousTag)
+					* numTrainingTags;
+			// every token adds to STOP_TAG's entry of its context
+			if (trigramProbabilities[contextOffset
+					+ trainingTags.indexOf(STOP_TAG)] == 0.0)
+				return -1;
+			return contextOffset;
+		}
+
+		private double getTrigramProbability(int contextOffset, int tag) {
+			if (contextOffset < 0)
+				return unknownTrigramProbabilities[tag];
+			return trigramProbabilities[contextOffset + tag];
+		}
+
+		private double getBigramProbability(int previousTag, int tag) {
+			if (previousTag < 0 || !seenPreviousTags[previousTag])
+				return unknownBigramProbabilities[tag];
+			return bigramProbabilities[previousTag * numTrainingTags + tag];
+		}
+
+		private double getLogTransition(int contextOffset, int previousTag,
+				int tag) {
+			return Math.log(0.6 * getTrigramProbability(contextOffset, tag)
+					+ 0.3 * getBigramProbability(previousTag, tag) + 0.1
+					* tagProbabilities[tag]);
+		}
+
+		private boolean isAnyTrigramAllowed(int contextOffset) {
+			if (contextOffset < 0)
+				return false;
+			for (int tag = 0; tag < numTrainingTags; tag++) {
+				if (seenTagTrigrams[contextOffset + tag])
+					return true;
 			}
-			return allowedTags;
+			return false;
 		}
 
-		private String makeTrigramString(String previousPreviousTag,
-				String previousTag, String currentTag) {
-			return previousPreviousTag + " " + previousTag + " " + currentTag;
+		// with restrictTrigrams, only seen trigrams are allowed, unless the
+		// context has none
+		private boolean isTrigramAllowed(int contextOffset,
+				boolean anyTrigramAllowed, int tag) {
+			return !restrictTrigrams || !anyTrigramAllowed
+					|| seenTagTrigrams[contextOffset + tag];
 		}
 
-		public void train(
-				List<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
-			// collect word-tag counts
-			for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
-				String word = labeledLocalTrigramContext.getCurrentWord();
-				String tag = labeledLocalTrigramContext.getCurrentTag();
-				String PPPtag = labeledLocalTrigramContext.getPreviousPreviousTag()
-                                + "_" + labeledLocalTrigramContext.getPreviousTag();
-                String PPtag = labeledLocalTrigramContext.getPreviousTag();
-
-                if (!wordsToTags.keySet().contains(word)) {
-					// word is currently unknown, so tally its tag in the
-					// unknown tag counter
-					unknownWordTags.incrementCount(tag, 1.0);
-				}
+		/**
+		 * log P(tag | suffix) / P(tag), which is log P(word | tag) up to a
+		 * term that is the same for every tag.
+		 */
+		private double getLogSuffixEmission(int suffixNode, int tag) {
+			if (tag < 0)
+				return Double.NEGATIVE_INFINITY;
+			double tagGivenSuffix = suffixTagModel.getTagProbability(
+					suffixNode, tag);
+			if (tagGivenSuffix == 0.0)
+				return Double.NEGATIVE_INFINITY;
+			return Math.log(tagGivenSuffix / tagProbabilities[tag]);
+		}
 
-                if (!tagsToTags.keySet().contains(PPPtag)) {
-                    unknownPPPTagsTags.incrementCount(tag, 1.0);
-                }
-                unknownPPPTagsTags.incrementCount(STOP_TAG, 1.0);
-                if (!tagsToWords.keySet().contains(tag)){
-                    unknownTagWords.incrementCount(word, 1.0);
-                }
-                if (!tagsToTags2.keySet().contains(tag)){
-                    unknownPPTagsTags.incrementCount(tag, 1.0);
-                }
+		private double getTagGivenWord(int word, int tag) {
+			if (tag < 0)
+				return 0.0;
+			return wordTagCounts[word * numTrainingTags + tag] / wordCounts[word];
+		}
 
-				wordsToTags.incrementCount(word, tag, 1.0);
-                //TODO
-                tagsToWords.incrementCount(tag, word, 1.0);
-                tagsToTags.incrementCount(PPPtag, tag, 1.0);
-                tagsToTags.incrementCount(PPPtag, STOP_TAG, 1.0);
-                tagsToTags2.incrementCount(PPtag, tag, 1.0);
-				Tags.incrementCount(tag, 1.0);
-                Words.incrementCount(word, 1.0);
-                Pattern p = Pattern.compile("[^a-zA-Z0-9 ]", Pattern.CASE_INSENSITIVE); 
-                if (p.matcher(word).find()){
-                    Special.incrementCount(word, tag, 1.0);
-                }
-                
-                //TODO
-                seenTagTrigrams.add(makeTrigramString(
-						labeledLocalTrigramContext.getPreviousPreviousTag(),
-						labeledLocalTrigramContext.getPreviousTag(),
-						labeledLocalTrigramContext.getCurrentTag()));
-			}
-            for (String PPPtag : tagsToTags.keySet()){
-                for (String tag : Tags.keySet()){
-                    if (!tagsToTags.getCounter(PPPtag).keySet().contains(tag)){
-                        tagsToTags.incrementCount(PPPtag, tag, 1.0);
-                    }
-                }
-            }
-            for (String tag : Tags.keySet()){
-                if (!unknownPPPTagsTags.keySet().contains(tag)){
-                    unknownPPPTagsTags.incrementCount(tag, 1.0);
-                }
-                if (!unknownPPTagsTags.keySet().contains(tag)){
-                    unknownPPTagsTags.incrementCount(tag, 1.0);
-                }
-            }
-            for (String PPtag : tagsToTags2.keySet()){
-                for (String tag : Tags.keySet()){
-                    if (!tagsToTags2.getCounter(PPtag).keySet().contains(tag)){
-                        tagsToTags2.incrementCount(PPtag, tag, 1.0);
-                    }
-                }
-            }
-            for (String word : Special.keySet()){
-                for (String tag : Tags.keySet()){
-                    if(!Special.getCounter(word).keySet().contains(tag)){
-                        Special.incrementCount(word, tag, 1.0);
-                    }
-                }
-            }
+		private double getTagGivenBucket(int bucket, int tag) {
+			if (bucket < 0 || tag < 0)
+				return 0.0;
+			return bucketTagProbabilities[bucket * numTrainingTags + tag];
+		}
 
+		private double getWordGivenTag(int word, int tag) {
+			if (word < 0)
+				return 0.0;
+			if (tag < 0 || tagCounts[tag] == 0.0)
+				return unknownTagWordProbabilities[word];
+			return wordTagCounts[word * numTrainingTags + tag] / tagCounts[tag];
+		}
 
-			wordsToTags = Counters.conditionalNormalize(wordsToTags);
-			unknownWordTags = Counters.normalize(unknownWordTags);
+		private static String getUnknownWordBucket(String word,
+				boolean startSentence) {
+			if (startSentence)
+				return "startSentence";
+			if (Character.isUpperCase(word.charAt(0)))
+				return "initCapital";
+			if (matchesDigital(word))
+				return "digital";
+			if (word.length() < 12)
+				return "firstLetter-" + word.charAt(0);
+			return "lastLetter-" + word.charAt(word.length() - 1);
+		}
 
-            tagsToWords = Counters.conditionalNormalize(tagsToWords);
-            unknownTagWords = Counters.normalize(unknownTagWords);
-            tagsToTags = Counters.conditionalNormalize(tagsToTags);
-		    unknownPPPTagsTags = Counters.normalize(unknownPPPTagsTags);
+		public void train(
+				List<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
+			int numTokens = labeledLocalTrigramContexts.size();
+			int[] words = new int[numTokens];
+			int[] previousPreviousTags = new int[numTokens];
+			int[] previousTags = new int[numTokens];
+			int[] tags = new int[numTokens];
+			startTraining();
+			for (int i = 0; i < numTokens; i++) {
+				LabeledLocalTrigramContext labeledLocalTrigramContext = labeledLocalTrigramContexts
+						.get(i);
+				words[i] = indexWord(labeledLocalTrigramContext.getCurrentWord());
+				previousPreviousTags[i] = indexTag(labeledLocalTrigramContext
+						.getPreviousPreviousTag());
+				previousTags[i] = indexTag(labeledLocalTrigramContext
+						.getPreviousTag());
+				tags[i] = indexTag(labeledLocalTrigramContext.getCurrentTag());
+			}
+			train(words, previousPreviousTags, previousTags, tags);
+		}
 
-            tagsToTags2 = Counters.conditionalNormalize(tagsToTags2);
-            unknownPPTagsTags = Counters.normalize(unknownPPTagsTags);
+		/**
+		 * Trains on the same local contexts as train(), without building
+		 * them: each word and tag is looked up once, into arrays of ids.
+		 */
+		public void trainOnSentences(List<TaggedSentence> taggedSentences) {
+			int numTokens = 0;
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				numTokens += taggedSentence.size() + 2;
+			}
+			int[] words = new int[numTokens];
+			int[] previousPreviousTags = new int[numTokens];
+			int[] previousTags = new int[numTokens];
+			int[] tags = new int[numTokens];
+			startTraining();
+			int startTag = indexTag(START_TAG);
+			int stopTag = indexTag(STOP_TAG);
+			int stopWord = -1;
+			int i = 0;
+			for (TaggedSentence taggedSentence : taggedSentences) {
+				int previousPreviousTag = startTag;
+				int previousTag = startTag;
+				Iterator<String> wordIterator = taggedSentence.getWords()
+						.iterator();
+				Iterator<String> tagIterator = taggedSentence.getTags()
+						.iterator();
+				for (int position = 0; position <= taggedSentence.size() + 1; position++) {
+					if (position < taggedSentence.size()) {
+						words[i] = indexWord(wordIterator.next());
+						tags[i] = indexTag(tagIterator.next());
+					} else {
+						if (stopWord < 0)
+							stopWord = indexWord(STOP_WORD);
+						words[i] = stopWord;
+						tags[i] = stopTag;
+					}
+					previousPreviousTags[i] = previousPreviousTag;
+					previousTags[i] = previousTag;
+					previousPreviousTag = previousTag;
+					previousTag = tags[i];
+					i++;
+				}
+			}
+			train(words, previousPreviousTags, previousTags, tags);
+		}
+
+		private void startTraining() {
+			trainingTags = new Indexer<String>();
+			trainingTags.add(START_TAG);
+			trainingTags.add(STOP_TAG);
+			wordIndexer = new Indexer<String>();
+		}
+
+		private int indexTag(String tag) {
+			trainingTags.add(tag);
+			return trainingTags.indexOf(tag);
+		}
+
+		private int indexWord(String word) {
+			wordIndexer.add(word);
+			return wordIndexer.indexOf(word);
+		}
+
+		private void train(int[] words, int[] previousPreviousTags,
+				int[] previousTags, int[] tags) {
+			int numTags = trainingTags.size();
+			int numWords = wordIndexer.size();
+			int startTag = trainingTags.indexOf(START_TAG);
+			int stopTag = trainingTags.indexOf(STOP_TAG);
+			numTrainingTags = numTags;
+			wordTagCounts = new double[numWords * numTags];
+			wordCounts = new double[numWords];
+			tagCounts = new double[numTags];
+			unknownTagWordProbabilities = new double[numWords];
+			trigramProbabilities = new double[numTags * numTags * numTags];
+			unknownTrigramProbabilities = new double[numTags];
+			seenPreviousTags = new boolean[numTags];
+			bigramProbabilities = new double[numTags * numTags];
+			unknownBigramProbabilities = new double[numTags];
+			seenTagTrigrams = new boolean[trigramProbabilities.length];
+
+			// collect counts; the unknown tables tally a token when its key
+			// has not been seen before it
+			for (int i = 0; i < tags.length; i++) {
+				int word = words[i];
+				int previousTag = previousTags[i];
+				int tag = tags[i];
+				int contextOffset = (previousPreviousTags[i] * numTags + previousTag)
+						* numTags;
+				if (trigramProbabilities[contextOffset + stopTag] == 0.0)
+					unknownTrigramProbabilities[tag]++;
+				unknownTrigramProbabilities[stopTag]++;
+				if (tagCounts[tag] == 0.0)
+					unknownTagWordProbabilities[word]++;
+				if (!seenPreviousTags[tag])
+					unknownBigramProbabilities[tag]++;
+
+				wordTagCounts[word * numTags + tag]++;
+				trigramProbabilities[contextOffset + tag]++;
+				trigramProbabilities[contextOffset + stopTag]++;
+				bigramProbabilities[previousTag * numTags + tag]++;
+				seenPreviousTags[previousTag] = true;
+				tagCounts[tag]++;
+				wordCounts[word]++;
+				seenTagTrigrams[contextOffset + tag] = true;
+			}
 
-            Tags = Counters.normalize(Tags);
-            Special = Counters.conditionalNormalize(Special);
+			// add one to every seen tag missing from a distribution
+			for (int contextOffset = 0; contextOffset < trigramProbabilities.length; contextOffset += numTags) {
+				if (trigramProbabilities[contextOffset + stopTag] == 0.0)
+					continue;
+				addMissingTags(trigramProbabilities, contextOffset);
+				normalize(trigramProbabilities, contextOffset, numTags);
+			}
+			addMissingTags(unknownTrigramProbabilities, 0);
+			normalize(unknownTrigramProbabilities, 0, numTags);
+			for (int previousTag = 0; previousTag < numTags; previousTag++) {
+				if (!seenPreviousTags[previousTag])
+					continue;
+				addMissingTags(bigramProbabilities, previousTag * numTags);
+				normalize(bigramProbabilities, previousTag * numTags, numTags);
+			}
+			addMissingTags(unknownBigramProbabilities, 0);
+			normalize(unknownBigramProbabilities, 0, numTags);
+			normalize(unknownTagWordProbabilities, 0, numWords);
+			tagProbabilities = Arrays.copyOf(tagCounts, numTags);
+			normalize(tagProbabilities, 0, numTags);
+
+			// tags of the tokens of rare words, by unknown word bucket
+			unknownWordBuckets = new Indexer<String>();
+			bucketTagProbabilities = new double[numTags];
+			for (int i = 0; i < tags.length; i++) {
+				if (wordCounts[words[i]] > RARE_WORD_COUNT)
+					continue;
+				String bucketName = getUnknownWordBucket(wordIndexer
+						.get(words[i]), previousTags[i] == startTag);
+				unknownWordBuckets.add(bucketName);
+				int bucketOffset = unknownWordBuckets.indexOf(bucketName)
+						* numTags;
+				if (bucketOffset == bucketTagProbabilities.length)
+					bucketTagProbabilities = Arrays.copyOf(
+							bucketTagProbabilities, 2 * bucketOffset);
+				bucketTagProbabilities[bucketOffset + tags[i]]++;
+			}
+			bucketTagProbabilities = Arrays.copyOf(bucketTagProbabilities,
+					unknownWordBuckets.size() * numTags);
+			for (int bucketOffset = 0; bucketOffset < bucketTagProbabilities.length; bucketOffset += numTags) {
+				addMissingTags(bucketTagProbabilities, bucketOffset);
+				normalize(bucketTagProbabilities, bucketOffset, numTags);
+			}
 
-            for (LabeledLocalTrigramContext labeledLocalTrigramContext : labeledLocalTrigramContexts) {
-                String word = labeledLocalTrigramContext.getCurrentWord();
-                String tag = labeledLocalTrigramContext.getCurrentTag();
-                String PPtag = labeledLocalTrigramContext.getPreviousTag();
-            
-                if (Words.getCount(word) <= 5){
-                    if (PPtag == START_TAG) {unknownWordTags2.incrementCount("startSentence", tag, 1.0);}
-                    else if (Character.isUpperCase(word.charAt(0))) {unknownWordTags2.incrementCount("initCapital", tag, 1.0);}
-                    else if (word.matches(".*\\d+.*")) {unknownWordTags2.incrementCount("digital", tag, 1.0);}   
-                    else if (word.length() < 12) {unknownWordTags2.incrementCount("firstLetter-" + word.charAt(0), tag, 1.0);}  
-                    else {unknownWordTags2.incrementCount("lastLetter-" + word.charAt(word.length()-1), tag, 1.0);}
-                }
-            }
-            for (String word: unknownWordTags2.keySet()){
-                for (String tag : Tags.keySet()){
-                    if (!unknownWordTags2.getCounter(word).keySet().contains(tag)){
-                        unknownWordTags2.incrementCount(word, tag, 1.0);
-                    }
-                }
-            }
-            unknownWordTags2 = Counters.conditionalNormalize(unknownWordTags2);
-        }
+			if (useSuffixModel) {
+				suffixTagModel = new SuffixTagModel(numTags, MAX_SUFFIX_LENGTH);
+				for (int i = 0; i < tags.length; i++) {
+					if (wordCounts[words[i]] <= RARE_WORD_COUNT)
+						suffixTagModel.addWord(wordIndexer.get(words[i]),
+								tags[i]);
+				}
+				suffixTagModel.build(SuffixTagModel
+						.getTheta(tagProbabilities));
+			}
+		}
+
+		private void addMissingTags(double[] counts, int offset) {
+			for (int tag = 0; tag < numTrainingTags; tag++) {
+				if (tagCounts[tag] > 0.0 && counts[offset + tag] == 0.0)
+					counts[offset + tag] = 1.0;
+			}
+		}
+
+		private static void normalize(double[] counts, int offset, int length) {
+			double total = 0.0;
+			for (int i = offset; i < offset + length; i++) {
+				total += counts[i];
+			}
+			for (int i = offset; i < offset + length; i++) {
+				counts[i] /= total;
+			}
+		}
 
 		public void validate(
 				List<LabeledLocalTrigramContext> labeledLocalTrigramContexts) {
 			// no tuning for this dummy model!
 		}
 
+		public void compile(Indexer<String> tagIndexer) {
+			this.tagIndexer = tagIndexer;
+			int numTags = tagIndexer.size();
+			startTagIndex = tagIndexer.indexOf(START_TAG);
+			int[] trainingTagIds = new int[numTags];
+			for (int tagIndex = 0; tagIndex < numTags; tagIndex++) {
+				trainingTagIds[tagIndex] = trainingTags.indexOf(tagIndexer
+						.get(tagIndex));
+			}
+			for (int tag = 0; tag < numTrainingTags; tag++) {
+				if (tagCounts[tag] > 0.0
+						&& tagIndexer.indexOf(trainingTags.get(tag)) < 0)
+					throw new RuntimeException("Unknown tag: "
+							+ trainingTags.get(tag));
+			}
+
+			// transitions, with the trigram restriction applied up front;
+			// after the contexts of two tags come those with a tag the model
+			// does not know, by previous tag (numTags if that is the unknown
+			// one)
+			int numContexts = numTags * numTags + numTags + 1;
+			int[] starts = new int[numContexts + 1];
+			int[] candidates = new int[numContexts * numTags];
+			double[] logTransitions = new double[candidates.length];
+			int numCandidates = 0;
+			for (int context = 0; context < numContexts; context++) {
+				int previousTag;
+				int contextOffset;
+				if (context < numTags * numTags) {
+					previousTag = trainingTagIds[context % numTags];
+					contextOffset = getContextOffset(
+							trainingTagIds[context / numTags], previousTag);
+				} else {
+					int previousTagIndex = context - numTags * numTags;
+					previousTag = (previousTagIndex < numTags ? trainingTagIds[previousTagIndex]
+							: -1);
+					contextOffset = -1;
+				}
+				boolean anyTrigramAllowed = isAnyTrigramAllowed(contextOffset);
+				for (int tagIndex = 0; tagIndex < numTags; tagIndex++) {
+					int tag = trainingTagIds[tagIndex];
+					if (tag < 0
+							|| getTrigramProbability(contextOffset, tag) == 0.0)
+						continue;
+					if (!isTrigramAllowed(contextOffset, anyTrigramAllowed, tag))
+						continue;
+					candidates[numCandidates] = tagIndex;
+					logTransitions[numCandidates] = getLogTransition(
+							contextOffset, previousTag, tag);
+					numCandidates++;
+				}
+				starts[context + 1] = numCandidates;
+			}
+			contextStarts = IntBuffer.wrap(starts);
+			candidateTags = IntBuffer.wrap(Arrays.copyOf(candidates,
+					numCandidates));
+			candidateLogTransitions = DoubleBuffer.wrap(Arrays.copyOf(
+					logTransitions, numCandidates));
+
+			// unknown word buckets: the fixed ones, the ones seen in training,
+			// and any training word that looks like a letter bucket name
+			Indexer<String> bucketIndexer = new Indexer<String>();
+			bucketIndexer.add("startSentence");
+			bucketIndexer.add("initCapital");
+			bucketIndexer.add("digital");
+			for (String bucket : unknownWordBuckets) {
+				bucketIndexer.add(bucket);
+			}
+			for (String word : wordIndexer) {
+				if (getLetterBucketChar(word) >= 0)
+					bucketIndexer.add(word);
+			}
+			startSentenceBucket = 0;
+			initCapitalBucket = 1;
+			digitalBucket = 2;
+			unseenBucket = bucketIndexer.size();
+			TreeMap<Character, Integer> firstLetterMap = new TreeMap<Character, Integer>();
+			TreeMap<Character, Integer> lastLetterMap = new TreeMap<Character, Integer>();
+			for (int bucket = 0; bucket < bucketIndexer.size(); bucket++) {
+				String bucketName = bucketIndexer.get(bucket);
+				int letter = getLetterBucketChar(bucketName);
+				if (letter < 0)
+					continue;
+				if (bucketName.startsWith("firstLetter-"))
+					firstLetterMap.put((char) letter, bucket);
+				else
+					lastLetterMap.put((char) letter, bucket);
+			}
+			firstLetters = CharBuffer.allocate(firstLetterMap.size());
+			firstLetterBuckets = IntBuffer.allocate(firstLetterMap.size());
+			int i = 0;
+			for (Map.Entry<Character, Integer> entry : firstLetterMap.entrySet()) {
+				firstLetters.put(i, entry.getKey());
+				firstLetterBuckets.put(i++, entry.getValue());
+			}
+			lastLetters = CharBuffer.allocate(lastLetterMap.size());
+			lastLetterBuckets = IntBuffer.allocate(lastLetterMap.size());
+			i = 0;
+			for (Map.Entry<Character, Integer> entry : lastLetterMap.entrySet()) {
+				lastLetters.put(i, entry.getKey());
+				lastLetterBuckets.put(i++, entry.getValue());
+			}
+
+			// emissions, one row per known word and then per bucket, with an
+			// empty row for unseen buckets
+			int numRows = wordIndexer.size() + bucketIndexer.size() + 1;
+			int[] rowStartArray = new int[numRows + 1];
+			int[] rowTagArray = new int[wordIndexer.size() * 2];
+			double[] logTagGivenWords = new double[rowTagArray.length];
+			double[] logWordGivenTags = new double[rowTagArray.length];
+			int numEntries = 0;
+			for (int row = 0; row < numRows - 1; row++) {
+				int word = row;
+				int bucket = -1;
+				if (row >= wordIndexer.size()) {
+					String bucketName = bucketIndexer.get(row
+							- wordIndexer.size());
+					word = wordIndexer.indexOf(bucketName);
+					bucket = unknownWordBuckets.indexOf(bucketName);
+				}
+				for (int tagIndex = 0; tagIndex < numTags; tagIndex++) {
+					int tag = trainingTagIds[tagIndex];
+					double tagGivenWord = (row < wordIndexer.size() ? getTagGivenWord(
+							word, tag)
+							: getTagGivenBucket(bucket, tag));
+					double wordGivenTag = getWordGivenTag(word, tag);
+					boolean hasTagGivenWord = tagGivenWord > 0.0;
+					boolean hasWordGivenTag = wordGivenTag > 0.0;
+					if (!hasTagGivenWord && !hasWordGivenTag)
+						continue;
+					if (numEntries == rowTagArray.length) {
+						rowTagArray = Arrays.copyOf(rowTagArray, 2 * numEntries);
+						logTagGivenWords = Arrays.copyOf(logTagGivenWords,
+								2 * numEntries);
+						logWordGivenTags = Arrays.copyOf(logWordGivenTags,
+								2 * numEntries);
+					}
+					rowTagArray[numEntries] = tagIndex;
+					logTagGivenWords[numEntries] = (hasTagGivenWord ? Math
+							.log(tagGivenWord) : Double.NEGATIVE_INFINITY);
+					logWordGivenTags[numEntries] = (hasWordGivenTag ? Math
+							.log(wordGivenTag) : Double.NaN);
+					numEntries++;
+				}
+				rowStartArray[row + 1] = numEntries;
+			}
+			rowStartArray[numRows] = numEntries;
+			rowStarts = IntBuffer.wrap(rowStartArray);
+			rowTags = IntBuffer.wrap(Arrays.copyOf(rowTagArray, numEntries));
+			rowLogTagGivenWords = DoubleBuffer.wrap(Arrays.copyOf(
+					logTagGivenWords, numEntries));
+			rowLogWordGivenTags = DoubleBuffer.wrap(Arrays.copyOf(
+					logWordGivenTags, numEntries));
+
+			if (suffixTagModel != null) {
+				suffixLogEmissions = DoubleBuffer.allocate(suffixTagModel
+						.getNumNodes()
+						* numTags);
+				for (int node = 0; node < suffixTagModel.getNumNodes(); node++) {
+					for (int tagIndex = 0; tagIndex < numTags; tagIndex++) {
+						suffixLogEmissions.put(node * numTags + tagIndex,
+								getLogSuffixEmission(node,
+										trainingTagIds[tagIndex]));
+					}
+				}
+			}
+		}
+
+		/**
+		 * Returns the letter of a "firstLetter-" or "lastLetter-" bucket
+		 * name, or -1 if the string is not one.
+		 */
+		private static int getLetterBucketChar(String word) {
+			if (word.length() == 13 && word.startsWith("firstLetter-"))
+				return word.charAt(12);
+			if (word.length() == 12 && word.startsWith("lastLetter-"))
+				return word.charAt(11);
+			return -1;
+		}
+
+		/**
+		 * Known words are coded by their id; unknown words by -(node + 1),
+		 * where the node is their suffix's, if there is a suffix model, and
+		 * otherwise by -(bucket + 1), where the bucket is the one
+		 * getLogScoreCounter would pick if the previous tag were not
+		 * START_TAG.
+		 */
+		public int[] encodeWords(List<String> sentence) {
+			int[] wordCodes = new int[sentence.size() + 2];
+			for (int position = 0; position < wordCodes.length; position++) {
+				String word = (position < sentence.size() ? sentence
+						.get(position) : STOP_WORD);
+				int wordIndex = wordIndexer.indexOf(word);
+				if (wordIndex >= 0)
+					wordCodes[position] = wordIndex;
+				else if (suffixTagModel != null)
+					wordCodes[position] = -(suffixTagModel.getNode(word) + 1);
+				else
+					wordCodes[position] = -(getBucket(word) + 1);
+			}
+			return wordCodes;
+		}
+
+		private int getBucket(String word) {
+			if (Character.isUpperCase(word.charAt(0)))
+				return initCapitalBucket;
+			if (matchesDigital(word))
+				return digitalBucket;
+			int i;
+			if (word.length() < 12) {
+				i = binarySearch(firstLetters, 0, firstLetters.limit(), word
+						.charAt(0));
+				return (i >= 0 ? firstLetterBuckets.get(i) : unseenBucket);
+			}
+			i = binarySearch(lastLetters, 0, lastLetters.limit(), word
+					.charAt(word.length() - 1));
+			return (i >= 0 ? lastLetterBuckets.get(i) : unseenBucket);
+		}
+
+		/**
+		 * Same as word.matches(".*\\d+.*"): some ASCII digit and, since '.'
+		 * does not match them, no line terminators.
+		 */
+		private static boolean matchesDigital(String word) {
+			boolean hasDigit = false;
+			for (int i = 0; i < word.length(); i++) {
+				char c = word.charAt(i);
+				if (c >= '0' && c <= '9')
+					hasDigit = true;
+				else if (c == '\n' || c == '\r' || c == '\u0085'
+						|| c == '\u2028' || c == '\u2029')
+					return false;
+			}
+			return hasDigit;
+		}
+
+		public int getLogScores(int[] wordCodes, int position,
+				int previousPreviousTag, int previousTag, int[] tags,
+				double[] scores) {
+			int context = getContext(previousPreviousTag, previousTag);
+			int wordCode = wordCodes[position];
+			if (wordCode < 0 && suffixLogEmissions != null)
+				return getSuffixLogScores(-wordCode - 1, context, tags, scores);
+			int row;
+			if (wordCode >= 0)
+				row = wordCode;
+			else if (previousTag == startTagIndex)
+				row = wordIndexer.size() + startSentenceBucket;
+			else
+				row = wordIndexer.size() - wordCode - 1;
+			int entry = rowStarts.get(row);
+			int rowEnd = rowStarts.get(row + 1);
+			int contextEnd = contextStarts.get(context + 1);
+			int numTags = 0;
+			for (int c = contextStarts.get(context); c < contextEnd; c++) {
+				int tag = candidateTags.get(c);
+				while (entry < rowEnd && rowTags.get(entry) < tag)
+					entry++;
+				double logScore = Double.NEGATIVE_INFINITY;
+				if (entry < rowEnd && rowTags.get(entry) == tag) {
+					logScore = rowLogTagGivenWords.get(entry);
+					double logWordGivenTag = rowLogWordGivenTags.get(entry);
+					if (!Double.isNaN(logWordGivenTag))
+						logScore = candidateLogTransitions.get(c)
+								+ logWordGivenTag;
+				}
+				tags[numTags] = tag;
+				scores[numTags] = logScore;
+				numTags++;
+			}
+			return numTags;
+		}
+
+		private int getContext(int previousPreviousTag, int previousTag) {
+			int numTags = tagIndexer.size();
+			if (previousPreviousTag < 0 || previousTag < 0)
+				return numTags * numTags
+						+ (previousTag < 0 ? numTags : previousTag);
+			return previousPreviousTag * numTags + previousTag;
+		}
+
+		private int getSuffixLogScores(int suffixNode, int context,
+				int[] tags, double[] scores) {
+			int offset = suffixNode * tagIndexer.size();
+			int contextEnd = contextStarts.get(context + 1);
+			int numTags = 0;
+			for (int c = contextStarts.get(context); c < contextEnd; c++) {
+				int tag = candidateTags.get(c);
+				tags[numTags] = tag;
+				scores[numTags] = candidateLogTransitions.get(c)
+						+ suffixLogEmissions.get(offset + tag);
+				numTags++;
+			}
+			return numTags;
+		}
+
+		/**
+		 * The words seen in training, which is all that a scorer read by
+		 * readCompiled() knows of its training data.
+		 */
+		public Set<String> getTrainingVocabulary() {
+			Set<String> trainingVocabulary = new HashSet<String>(wordIndexer);
+			trainingVocabulary.remove(STOP_WORD);
+			return trainingVocabulary;
+		}
+
+		/**
+		 * Writes the tables built by compile(), but not the tag and word
+		 * indexers, which are the caller's to save.
+		 */
+		public void writeCompiled(DataOutputStream out) throws IOException {
+			out.writeInt(restrictTrigrams ? 1 : 0);
+			out.writeInt(suffixTagModel != null ? 1 : 0);
+			out.writeInt(startTagIndex);
+			writeIntBuffer(out, contextStarts);
+			writeIntBuffer(out, candidateTags);
+			writeDoubleBuffer(out, candidateLogTransitions);
+			writeIntBuffer(out, rowStarts);
+			writeIntBuffer(out, rowTags);
+			writeDoubleBuffer(out, rowLogTagGivenWords);
+			writeDoubleBuffer(out, rowLogWordGivenTags);
+			out.writeInt(startSentenceBucket);
+			out.writeInt(initCapitalBucket);
+			out.writeInt(digitalBucket);
+			out.writeInt(unseenBucket);
+			writeCharBuffer(out, firstLetters);
+			writeIntBuffer(out, firstLetterBuckets);
+			writeCharBuffer(out, lastLetters);
+			writeIntBuffer(out, lastLetterBuckets);
+			if (suffixTagModel != null) {
+				out.writeInt(suffixTagModel.numTags);
+				out.writeInt(suffixTagModel.maxSuffixLength);
+				writeIntBuffer(out, suffixTagModel.childStarts);
+				writeCharBuffer(out, suffixTagModel.nodeChars);
+				writeDoubleBuffer(out, suffixTagModel.tagProbabilities);
+				writeDoubleBuffer(out, suffixLogEmissions);
+			}
+		}
+
+		/**
+		 * Reads the tables written by writeCompiled() as views of the buffer,
+		 * which the scorer then scores from in place; it cannot be compiled
+		 * again.
+		 */
+		public static MostFrequentTagScorer readCompiled(ByteBuffer buffer,
+				Indexer<String> tagIndexer, Indexer<String> wordIndexer) {
+			MostFrequentTagScorer scorer = new MostFrequentTagScorer(buffer
+					.getInt() != 0, buffer.getInt() != 0);
+			scorer.tagIndexer = tagIndexer;
+			scorer.wordIndexer = wordIndexer;
+			scorer.startTagIndex = buffer.getInt();
+			scorer.contextStarts = readIntBuffer(buffer);
+			scorer.candidateTags = readIntBuffer(buffer);
+			scorer.candidateLogTransitions = readDoubleBuffer(buffer);
+			scorer.rowStarts = readIntBuffer(buffer);
+			scorer.rowTags = readIntBuffer(buffer);
+			scorer.rowLogTagGivenWords = readDoubleBuffer(buffer);
+			scorer.rowLogWordGivenTags = readDoubleBuffer(buffer);
+			scorer.startSentenceBucket = buffer.getInt();
+			scorer.initCapitalBucket = buffer.getInt();
+			scorer.digitalBucket = buffer.getInt();
+			scorer.unseenBucket = buffer.getInt();
+			scorer.firstLetters = readCharBuffer(buffer);
+			scorer.firstLetterBuckets = readIntBuffer(buffer);
+			scorer.lastLetters = readCharBuffer(buffer);
+			scorer.lastLetterBuckets = readIntBuffer(buffer);
+			if (scorer.useSuffixModel) {
+				int numTags = buffer.getInt();
+				int maxSuffixLength = buffer.getInt();
+				scorer.suffixTagModel = new SuffixTagModel(numTags,
+						maxSuffixLength, readIntBuffer(buffer),
+						readCharBuffer(buffer), readDoubleBuffer(buffer));
+				scorer.suffixLogEmissions = readDoubleBuffer(buffer);
+			}
+			return scorer;
+		}
+
 		public MostFrequentTagScorer(boolean restrictTrigrams) {
+			this(restrictTrigrams, false);
+		}
+
+		public MostFrequentTagScorer(boolean restrictTrigrams,
+				boolean useSuffixModel) {
 			this.restrictTrigrams = restrictTrigrams;
+			this.useSuffixModel = useSuffixModel;
+		}
+	}
+
+	// tables in model files: the length, zero padding up to a multiple of
+	// the value size (offsets are from the start of the file), then the
+	// big-endian values; they are read back as views of the mapped file
+	private static void writeIntBuffer(DataOutputStream out, IntBuffer values)
+			throws IOException {
+		out.writeInt(values.limit());
+		pad(out, 4);
+		for (int i = 0; i < values.limit(); i++) {
+			out.writeInt(values.get(i));
+		}
+	}
+
+	private static void writeDoubleBuffer(DataOutputStream out,
+			DoubleBuffer values) throws IOException {
+		out.writeInt(values.limit());
+		pad(out, 8);
+		for (int i = 0; i < values.limit(); i++) {
+			out.writeDouble(values.get(i));
+		}
+	}
+
+	private static void writeCharBuffer(DataOutputStream out,
+			CharBuffer values) throws IOException {
+		out.writeInt(values.limit());
+		pad(out, 2);
+		for (int i = 0; i < values.limit(); i++) {
+			out.writeChar(values.get(i));
 		}
 	}
 
+	private static void pad(DataOutputStream out, int size) throws IOException {
+		while (out.size() % size != 0)
+			out.writeByte(0);
+	}
+
+	private static void writeStringList(DataOutputStream out,
+			List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			byte[] bytes = value.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static Indexer<String> readStringIndexer(ByteBuffer buffer) {
+		int size = buffer.getInt();
+		Indexer<String> indexer = new Indexer<String>();
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < size; i++) {
+			int length = buffer.getInt();
+			if (length > bytes.length)
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			buffer.get(bytes, 0, length);
+			indexer.add(new String(bytes, 0, length, UTF8));
+		}
+		return indexer;
+	}
+
+	private static IntBuffer readIntBuffer(ByteBuffer buffer) {
+		IntBuffer values = sliceTable(buffer, 4).asIntBuffer();
+		buffer.position(buffer.position() + 4 * values.limit());
+		return values;
+	}
+
+	private static DoubleBuffer readDoubleBuffer(ByteBuffer buffer) {
+		DoubleBuffer values = sliceTable(buffer, 8).asDoubleBuffer();
+		buffer.position(buffer.position() + 8 * values.limit());
+		return values;
+	}
+
+	private static CharBuffer readCharBuffer(ByteBuffer buffer) {
+		CharBuffer values = sliceTable(buffer, 2).asCharBuffer();
+		buffer.position(buffer.position() + 2 * values.limit());
+		return values;
+	}
+
+	// the bytes of the next table, which starts at the aligned position
+	private static ByteBuffer sliceTable(ByteBuffer buffer, int size) {
+		int length = buffer.getInt();
+		int start = (buffer.position() + size - 1) / size * size;
+		if (length < 0 || start > buffer.limit()
+				|| (long) length * size > buffer.limit() - start)
+			throw new BufferUnderflowException();
+		buffer.position(start);
+		ByteBuffer table = buffer.slice();
+		table.limit(length * size);
+		return table;
+	}
+
+	// Arrays.binarySearch over a range of a table
+	private static int binarySearch(IntBuffer values, int fromIndex,
+			int toIndex, int key) {
+		int low = fromIndex;
+		int high = toIndex - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int value = values.get(middle);
+			if (value < key)
+				low = middle + 1;
+			else if (value > key)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+
+	private static int binarySearch(CharBuffer values, int fromIndex,
+			int toIndex, char key) {
+		int low = fromIndex;
+		int high = toIndex - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			char value = values.get(middle);
+			if (value < key)
+				low = middle + 1;
+			else if (value > key)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+
 	private static List<TaggedSentence> readTaggedSentences(String path,
 			boolean hasTags) throws Exception {
 		List<TaggedSentence> taggedSentences = new ArrayList<TaggedSentence>();
@@ -903,12 +2963,106 @@ public class POSTaggerTester {
 		return taggedSentences;
 	}
 
+	/**
+	 * Tags the sentences from start to end, and if scoreTaggings is set, also
+	 * scores the gold and guessed taggings. Each task writes only its own
+	 * slots of the shared result lists.
+	 */
+	static class TaggingTask implements Callable<Void> {
+		POSTagger posTagger;
+		List<TaggedSentence> sentences;
+		int start;
+		int end;
+		boolean scoreTaggings;
+		List<List<String>> guessedTags;
+		double[] goldScores;
+		double[] guessedScores;
+
+		public Void call() {
+			for (int i = start; i < end; i++) {
+				TaggedSentence sentence = sentences.get(i);
+				List<String> words = sentence.getWords();
+				if (scoreTaggings) {
+					List<String> tags = posTagger.tag(words, sentence
+							.getTags());
+					guessedTags.set(i, tags);
+					goldScores[i] = posTagger.scoreTagging(sentence);
+					guessedScores[i] = posTagger
+							.scoreTagging(new TaggedSentence(words, tags));
+				} else {
+					guessedTags.set(i, posTagger.tag(words));
+				}
+			}
+			return null;
+		}
+
+		public TaggingTask(POSTagger posTagger,
+				List<TaggedSentence> sentences, int start, int end,
+				boolean scoreTaggings, List<List<String>> guessedTags,
+				double[] goldScores, double[] guessedScores) {
+			this.posTagger = posTagger;
+			this.sentences = sentences;
+			this.start = start;
+			this.end = end;
+			this.scoreTaggings = scoreTaggings;
+			this.guessedTags = guessedTags;
+			this.goldScores = goldScores;
+			this.guessedScores = guessedScores;
+		}
+	}
+
+	private static final int TAGGING_BLOCK_SIZE = 16;
+
+	/**
+	 * Tags the sentences on numThreads threads, in blocks of
+	 * TAGGING_BLOCK_SIZE sentences, and returns the guessed tags in the order
+	 * of the sentences. If goldScores and guessedScores are given, they are
+	 * filled in as well.
+	 */
+	private static List<List<String>> tagSentences(POSTagger posTagger,
+			List<TaggedSentence> sentences, int numThreads,
+			double[] goldScores, double[] guessedScores) throws Exception {
+		List<List<String>> guessedTags = new ArrayList<List<String>>(
+				Collections.<List<String>> nCopies(sentences.size(), null));
+		boolean scoreTaggings = (goldScores != null);
+		List<TaggingTask> tasks = new ArrayList<TaggingTask>();
+		for (int start = 0; start < sentences.size(); start += TAGGING_BLOCK_SIZE) {
+			tasks.add(new TaggingTask(posTagger, sentences, start, Math.min(
+					start + TAGGING_BLOCK_SIZE, sentences.size()),
+					scoreTaggings, guessedTags, goldScores, guessedScores));
+		}
+		if (numThreads <= 1) {
+			for (TaggingTask task : tasks) {
+				task.call();
+			}
+			return guessedTags;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return guessedTags;
+	}
+
 	private static void labelTestSet(POSTagger posTagger,
-			List<TaggedSentence> testSentences, String path) throws Exception {
+			List<TaggedSentence> testSentences, String path, int numThreads)
+			throws Exception {
+		List<List<String>> allGuessedTags = tagSentences(posTagger,
+				testSentences, numThreads, null, null);
 		BufferedWriter writer = new BufferedWriter(new FileWriter(path));
-		for (TaggedSentence sentence : testSentences) {
-			List<String> words = sentence.getWords();
-			List<String> guessedTags = posTagger.tag(words);
+		for (int s = 0; s < testSentences.size(); s++) {
+			List<String> words = testSentences.get(s).getWords();
+			List<String> guessedTags = allGuessedTags.get(s);
 			for (int i = 0; i < words.size(); i++) {
 				writer.write(words.get(i) + "\t" + guessedTags.get(i) + "\n");
 			}
@@ -919,21 +3073,25 @@ public class POSTaggerTester {
 
 	private static void evaluateTagger(POSTagger posTagger,
 			List<TaggedSentence> taggedSentences,
-			Set<String> trainingVocabulary, boolean verbose) {
+			Set<String> trainingVocabulary, boolean verbose, int numThreads)
+			throws Exception {
 		double numTags = 0.0;
 		double numTagsCorrect = 0.0;
 		double numUnknownWords = 0.0;
 		double numUnknownWordsCorrect = 0.0;
 		int numDecodingInversions = 0;
-
-        int PrintCount = 0;
-
-		for (TaggedSentence taggedSentence : taggedSentences) {
+		if (posTagger.latticeDecoder instanceof BeamDecoder)
+			((BeamDecoder) posTagger.latticeDecoder).resetStatistics();
+
+		double[] goldScores = new double[taggedSentences.size()];
+		double[] guessedScores = new double[taggedSentences.size()];
+		List<List<String>> allGuessedTags = tagSentences(posTagger,
+				taggedSentences, numThreads, goldScores, guessedScores);
+		for (int s = 0; s < taggedSentences.size(); s++) {
+			TaggedSentence taggedSentence = taggedSentences.get(s);
 			List<String> words = taggedSentence.getWords();
 			List<String> goldTags = taggedSentence.getTags();
-            PrintCount = PrintCount + 1;
-            System.out.println(PrintCount);
-            List<String> guessedTags = posTagger.tag(words);
+			List<String> guessedTags = allGuessedTags.get(s);
             for (int position = 0; position < words.size() - 1; position++) {
 				String word = words.get(position);
 				String goldTag = goldTags.get(position);
@@ -947,9 +3105,8 @@ public class POSTaggerTester {
 					numUnknownWords += 1.0;
 				}
 			}
-			double scoreOfGoldTagging = posTagger.scoreTagging(taggedSentence);
-			double scoreOfGuessedTagging = posTagger
-					.scoreTagging(new TaggedSentence(words, guessedTags));
+			double scoreOfGoldTagging = goldScores[s];
+			double scoreOfGuessedTagging = guessedScores[s];
 			if (scoreOfGoldTagging > scoreOfGuessedTagging) {
 				numDecodingInversions++;
 				if (verbose)
@@ -965,6 +3122,9 @@ public class POSTaggerTester {
 				+ (numUnknownWordsCorrect / numUnknownWords)
 				+ ")  Decoder Suboptimalities Detected: "
 				+ numDecodingInversions);
+		if (posTagger.latticeDecoder instanceof BeamDecoder)
+			System.out.println(((BeamDecoder) posTagger.latticeDecoder)
+					.getStatistics());
 	}
 
 	// pretty-print a pair of taggings for a sentence, possibly suppressing the
@@ -1026,6 +3186,13 @@ public class POSTaggerTester {
 		// Set up default parameters and settings
 		String basePath = ".";
 		boolean verbose = false;
+		int beamWidth = 0;
+		int numThreads = 1;
+		boolean posteriorDecoding = false;
+		boolean useSuffixModel = false;
+		boolean useTagDictionary = false;
+		String saveModelPath = null;
+		String loadModelPath = null;
 
 		// Update defaults using command line specifications
 
@@ -1040,12 +3207,59 @@ public class POSTaggerTester {
 			verbose = true;
 		}
 
+		// Decode with a beam of this many states instead of exact Viterbi
+		if (argMap.containsKey("-beam")) {
+			beamWidth = Integer.parseInt(argMap.get("-beam"));
+			System.out.println("Using beam width: " + beamWidth);
+		}
+
+		// Choose the tag with the highest posterior at each position instead
+		// of the best path
+		if (argMap.containsKey("-posterior")) {
+			posteriorDecoding = true;
+			System.out.println("Using posterior decoding");
+		}
+
+		// Score unknown words by their suffixes instead of by buckets
+		if (argMap.containsKey("-suffixModel")) {
+			useSuffixModel = true;
+			System.out.println("Using suffix model for unknown words");
+		}
+
+		// Only give frequent words the tags they were seen with in training
+		if (argMap.containsKey("-tagDictionary")) {
+			useTagDictionary = true;
+			System.out.println("Using tag dictionary");
+		}
+
+		// Write the trained tagger to this file
+		if (argMap.containsKey("-saveModel")) {
+			saveModelPath = argMap.get("-saveModel");
+			System.out.println("Saving model to: " + saveModelPath);
+		}
+
+		// Load a tagger written with -saveModel instead of training one
+		if (argMap.containsKey("-loadModel")) {
+			loadModelPath = argMap.get("-loadModel");
+			System.out.println("Loading model from: " + loadModelPath);
+		}
+
+		// Number of threads used to tag the dev and test sentences
+		if (argMap.containsKey("-threads")) {
+			numThreads = Integer.parseInt(argMap.get("-threads"));
+			System.out.println("Using threads: " + numThreads);
+		}
+
 		// Read in data
-		System.out.print("Loading training sentences...");
-		List<TaggedSentence> trainTaggedSentences = readTaggedSentences(
-				basePath + "/en-wsj-train.pos", true);
-        Set<String> trainingVocabulary = extractVocabulary(trainTaggedSentences);
-		System.out.println("done.");
+		List<TaggedSentence> trainTaggedSentences = null;
+		Set<String> trainingVocabulary = null;
+		if (loadModelPath == null) {
+			System.out.print("Loading training sentences...");
+			trainTaggedSentences = readTaggedSentences(basePath
+					+ "/en-wsj-train.pos", true);
+			trainingVocabulary = extractVocabulary(trainTaggedSentences);
+			System.out.println("done.");
+		}
 		System.out.print("Loading in-domain dev sentences...");
 		List<TaggedSentence> devInTaggedSentences = readTaggedSentences(
 				basePath + "/en-wsj-dev.pos", true);
@@ -1062,13 +3276,30 @@ public class POSTaggerTester {
 
 		// Construct tagger components
 		// TODO : improve on the MostFrequentTagScorer
-		LocalTrigramScorer localTrigramScorer = new MostFrequentTagScorer(false);
+		LocalTrigramScorer localTrigramScorer = new MostFrequentTagScorer(
+				false, useSuffixModel);
 		// TODO : improve on the GreedyDecoder
-		TrellisDecoder<State> trellisDecoder = new ViterbiDecoder<State>();
-
-		// Train tagger
-		POSTagger posTagger = new POSTagger(localTrigramScorer, trellisDecoder);
-		posTagger.train(trainTaggedSentences);
+		LatticeDecoder latticeDecoder = new LatticeViterbiDecoder("AFX");
+		if (posteriorDecoding)
+			latticeDecoder = new PosteriorDecoder();
+		else if (beamWidth > 0)
+			latticeDecoder = new BeamDecoder(beamWidth, "AFX");
+
+		// Train tagger, or load a trained one
+		POSTagger posTagger;
+		if (loadModelPath != null) {
+			System.out.print("Loading tagger model...");
+			posTagger = POSTagger.load(new File(loadModelPath), latticeDecoder);
+			posTagger.setUseTagDictionary(useTagDictionary);
+			trainingVocabulary = posTagger.getTrainingVocabulary();
+			System.out.println("done.");
+		} else {
+			posTagger = new POSTagger(localTrigramScorer, latticeDecoder);
+			posTagger.setUseTagDictionary(useTagDictionary);
+			posTagger.train(trainTaggedSentences);
+		}
+		if (saveModelPath != null)
+			posTagger.save(new File(saveModelPath));
 
 		// Optionally tune hyperparameters on dev data
 		posTagger.validate(devInTaggedSentences);
@@ -1077,12 +3308,13 @@ public class POSTaggerTester {
 		
         System.out.println("Evaluating on in-domain data:.");
 		evaluateTagger(posTagger, devInTaggedSentences, trainingVocabulary,
-				verbose);
+				verbose, numThreads);
 		
         System.out.println("Evaluating on out-of-domain data:.");
 		evaluateTagger(posTagger, devOutTaggedSentences, trainingVocabulary,
-				verbose);
+				verbose, numThreads);
 		
-        labelTestSet(posTagger, testSentences, basePath + "/en-web-test.tagged");
+        labelTestSet(posTagger, testSentences, basePath + "/en-web-test.tagged",
+                numThreads);
 	}
 }